@@ -0,0 +1,261 @@
+package com.sidp.distributed;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+public class Benchmarks {
+    private static final String[] WORDS = {"distributed", "systems", "java", "concurrency", "algorithms", "data", "network",
+            "kernel", "patterns", "design", "cloud", "database", "compiler", "security", "graphics", "learning"};
+    private static final String[] QUERIES = {"java", "sys", "pattern", "zzz", "data structures"};
+
+    private static volatile long sink;
+
+    private int warmup = 3;
+    private int iterations = 5;
+    private long iterationMillis = 1000;
+    private int maxBooks = 1_000_000;
+    private int clients = 8;
+
+    private interface Op {
+        long run() throws Exception;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Benchmarks b = new Benchmarks();
+        List<String> suites = new ArrayList<>();
+        for (String a : args) {
+            if (a.startsWith("--warmup=")) {
+                b.warmup = Integer.parseInt(a.substring(9));
+            } else if (a.startsWith("--iterations=")) {
+                b.iterations = Integer.parseInt(a.substring(13));
+            } else if (a.startsWith("--time-ms=")) {
+                b.iterationMillis = Long.parseLong(a.substring(10));
+            } else if (a.startsWith("--max-books=")) {
+                b.maxBooks = Integer.parseInt(a.substring(12));
+            } else if (a.startsWith("--clients=")) {
+                b.clients = Integer.parseInt(a.substring(10));
+            } else if (a.startsWith("--")) {
+                System.out.println("Usage: Benchmarks [codec] [search] [cluster] [--warmup=n] [--iterations=n] [--time-ms=n] [--max-books=n] [--clients=n]");
+                return;
+            } else {
+                suites.add(a);
+            }
+        }
+        if (suites.isEmpty()) suites.addAll(Arrays.asList("codec", "search", "cluster"));
+        System.out.printf("%-52s %14s %12s%n", "Benchmark", "ns/op", "error");
+        for (String suite : suites) {
+            switch (suite) {
+                case "codec":
+                    b.codec();
+                    break;
+                case "search":
+                    b.search();
+                    break;
+                case "cluster":
+                    b.cluster();
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown suite " + suite);
+            }
+        }
+    }
+
+    private void codec() throws Exception {
+        Book book = new Book("LIB1-000042", "Java Concurrency in Practice", "Brian Goetz",
+                Arrays.asList("java", "concurrency", "threads"), true);
+        String protocol = Book.toProtocolLine(book);
+        String storage = book.toStorageLine();
+        measure("Book.toProtocolLine", () -> Book.toProtocolLine(book).length());
+        measure("Book.fromProtocolLine", () -> Book.fromProtocolLine(protocol).getId().length());
+        measure("Book.fromStorageLine", () -> Book.fromStorageLine(storage).getKeywords().size());
+    }
+
+    private void search() throws Exception {
+        for (int n = 1000; n <= maxBooks; n *= 10) {
+            List<Book> books = catalog("LIB1", n, new Random(42));
+            KeywordIndex index = new KeywordIndex();
+            index.rebuild(books);
+            for (String q : QUERIES) {
+                measure("Book.matchesKeyword scan n=" + n + " q=" + q, () -> {
+                    long hits = 0;
+                    for (Book b : books) {
+                        if (b.matchesKeyword(q)) hits++;
+                    }
+                    return hits;
+                });
+                measure("KeywordIndex.search n=" + n + " q=" + q, () -> index.search(q).size());
+            }
+        }
+    }
+
+    private void cluster() throws Exception {
+        File dir = Files.createTempDirectory("sidp-bench").toFile();
+        dir.deleteOnExit();
+        List<CoordinatorServer.LibraryEndpoint> endpoints = new ArrayList<>();
+        Random rnd = new Random(42);
+        for (int i = 1; i <= 3; i++) {
+            String sid = "LIB" + i;
+            File csv = new File(dir, sid.toLowerCase() + ".csv");
+            csv.deleteOnExit();
+            BookJournal.writeSnapshot(csv, catalog(sid, 10_000, rnd));
+            int port = freePort();
+            LibraryServer lib = new LibraryServer(sid, port, csv);
+            daemon(sid, () -> {
+                lib.start();
+                return 0;
+            });
+            endpoints.add(new CoordinatorServer.LibraryEndpoint(sid, "127.0.0.1", port));
+        }
+        int coordPort = freePort();
+        CoordinatorConfig config = new CoordinatorConfig();
+        config.cacheSize = 0;
+        CoordinatorServer coordinator = new CoordinatorServer(coordPort, endpoints, config);
+        daemon("coordinator", () -> {
+            coordinator.start();
+            return 0;
+        });
+        for (CoordinatorServer.LibraryEndpoint ep : endpoints) awaitPort(ep.port);
+        awaitPort(coordPort);
+        for (String q : new String[] {"java", "pattern", "zzz"}) {
+            runClients("cluster SEARCH " + q + " clients=" + clients, "SEARCH " + q, coordPort);
+        }
+        runClients("cluster SEARCH LIMIT=10 sys clients=" + clients, "SEARCH LIMIT=10 sys", coordPort);
+    }
+
+    private void runClients(String name, String cmd, int port) throws Exception {
+        long[][] samples = new long[clients][];
+        long[] counts = new long[clients];
+        for (int round = 0; round < warmup + 1; round++) {
+            boolean record = round == warmup;
+            CountDownLatch done = new CountDownLatch(clients);
+            for (int c = 0; c < clients; c++) {
+                int id = c;
+                daemon("bench-client-" + c, () -> {
+                    try (Socket s = new Socket()) {
+                        s.connect(new InetSocketAddress("127.0.0.1", port), 1000);
+                        s.setSoTimeout(5000);
+                        BufferedWriter w = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8));
+                        BufferedReader r = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+                        long[] lat = new long[1024];
+                        int n = 0;
+                        long end = System.nanoTime() + iterationMillis * 1_000_000L * (record ? iterations : 1);
+                        while (System.nanoTime() < end) {
+                            long t0 = System.nanoTime();
+                            w.write(cmd);
+                            w.write("\n");
+                            w.flush();
+                            String line;
+                            while ((line = r.readLine()) != null && !line.equals("END") && !line.startsWith("ERROR ")) {
+                                sink += line.length();
+                            }
+                            if (n == lat.length) lat = Arrays.copyOf(lat, n * 2);
+                            lat[n++] = System.nanoTime() - t0;
+                        }
+                        samples[id] = Arrays.copyOf(lat, n);
+                        counts[id] = n;
+                    } finally {
+                        done.countDown();
+                    }
+                    return 0;
+                });
+            }
+            done.await();
+        }
+        long total = 0;
+        for (long n : counts) total += n;
+        long[] all = new long[(int) total];
+        int pos = 0;
+        for (long[] s : samples) {
+            if (s == null) continue;
+            System.arraycopy(s, 0, all, pos, s.length);
+            pos += s.length;
+        }
+        Arrays.sort(all, 0, pos);
+        double seconds = iterationMillis * iterations / 1000.0;
+        System.out.printf("%-52s %10.0f ops/s  p50=%.2fms p99=%.2fms p999=%.2fms%n", name, pos / seconds,
+                percentile(all, pos, 0.50), percentile(all, pos, 0.99), percentile(all, pos, 0.999));
+    }
+
+    private void measure(String name, Op op) throws Exception {
+        double[] nsPerOp = new double[iterations];
+        for (int i = 0; i < warmup + iterations; i++) {
+            long ops = 0;
+            long start = System.nanoTime();
+            long end = start + iterationMillis * 1_000_000L;
+            long now;
+            do {
+                sink += op.run();
+                ops++;
+            } while ((now = System.nanoTime()) < end);
+            if (i >= warmup) nsPerOp[i - warmup] = (double) (now - start) / ops;
+        }
+        double mean = 0;
+        for (double v : nsPerOp) mean += v;
+        mean /= iterations;
+        double var = 0;
+        for (double v : nsPerOp) var += (v - mean) * (v - mean);
+        double err = iterations > 1 ? Math.sqrt(var / (iterations - 1)) : 0;
+        System.out.printf("%-52s %14.1f %12.1f%n", name, mean, err);
+    }
+
+    private static double percentile(long[] sorted, int n, double p) {
+        if (n == 0) return 0;
+        int idx = (int) Math.min(n - 1, Math.ceil(p * n) - 1);
+        return sorted[Math.max(0, idx)] / 1_000_000.0;
+    }
+
+    private static List<Book> catalog(String serverId, int n, Random rnd) {
+        List<Book> books = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            String title = WORDS[rnd.nextInt(WORDS.length)] + " " + WORDS[rnd.nextInt(WORDS.length)] + " " + i;
+            String author = "Author " + rnd.nextInt(n / 10 + 1);
+            List<String> kws = Arrays.asList(WORDS[rnd.nextInt(WORDS.length)], WORDS[rnd.nextInt(WORDS.length)]);
+            books.add(new Book(String.format("%s-%07d", serverId, i), title, author, kws, rnd.nextInt(4) != 0));
+        }
+        return books;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket s = new ServerSocket(0)) {
+            return s.getLocalPort();
+        }
+    }
+
+    private static void awaitPort(int port) throws InterruptedException {
+        for (int i = 0; i < 200; i++) {
+            try (Socket s = new Socket()) {
+                s.connect(new InetSocketAddress("127.0.0.1", port), 100);
+                return;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IllegalStateException("Server on port " + port + " did not start");
+    }
+
+    private static void daemon(String name, Op body) {
+        Thread t = new Thread(() -> {
+            try {
+                body.run();
+            } catch (Exception e) {
+                System.err.println(name + ": " + e);
+            }
+        }, name);
+        t.setDaemon(true);
+        t.start();
+    }
+}
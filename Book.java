@@ -3,20 +3,42 @@ package com.sidp.distributed;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class Book {
     private final String id;
     private final String title;
     private final String author;
     private final List<String> keywords;
-    private boolean available;
+    private final String titleLower;
+    private final String authorLower;
+    private final String[] keywordsLower;
+    private final AtomicBoolean available;
 
     public Book(String id, String title, String author, List<String> keywords, boolean available) {
         this.id = id;
         this.title = title;
         this.author = author;
         this.keywords = new ArrayList<>(keywords);
-        this.available = available;
+        this.titleLower = title.toLowerCase();
+        this.authorLower = author.toLowerCase();
+        this.keywordsLower = new String[this.keywords.size()];
+        for (int i = 0; i < keywordsLower.length; i++) {
+            keywordsLower[i] = this.keywords.get(i).toLowerCase();
+        }
+        this.available = new AtomicBoolean(available);
+    }
+
+    protected Book(String id, boolean available) {
+        this.id = id;
+        this.title = null;
+        this.author = null;
+        this.keywords = null;
+        this.titleLower = null;
+        this.authorLower = null;
+        this.keywordsLower = null;
+        this.available = new AtomicBoolean(available);
     }
 
     public String getId() {
@@ -36,11 +58,15 @@ public class Book {
     }
 
     public boolean isAvailable() {
-        return available;
+        return available.get();
     }
 
     public void setAvailable(boolean available) {
-        this.available = available;
+        this.available.set(available);
+    }
+
+    public boolean compareAndSetAvailable(boolean expected, boolean available) {
+        return this.available.compareAndSet(expected, available);
     }
 
     public String getServerId() {
@@ -50,18 +76,29 @@ public class Book {
     }
 
     public boolean matchesKeyword(String k) {
-        String q = k.toLowerCase();
-        if (title.toLowerCase().contains(q)) return true;
-        if (author.toLowerCase().contains(q)) return true;
-        for (String kw : keywords) {
-            if (kw.toLowerCase().contains(q)) return true;
+        return matchesLowerKeyword(k.toLowerCase());
+    }
+
+    public boolean matchesLowerKeyword(String q) {
+        if (titleLower.contains(q)) return true;
+        if (authorLower.contains(q)) return true;
+        for (String kw : keywordsLower) {
+            if (kw.contains(q)) return true;
         }
         return false;
     }
 
+    String[] searchFields() {
+        String[] fields = new String[keywordsLower.length + 2];
+        fields[0] = titleLower;
+        fields[1] = authorLower;
+        System.arraycopy(keywordsLower, 0, fields, 2, keywordsLower.length);
+        return fields;
+    }
+
     public String toStorageLine() {
-        String kw = String.join(";", keywords);
-        return escape(id) + "|" + escape(title) + "|" + escape(author) + "|" + escape(kw) + "|" + (available ? "true" : "false");
+        String kw = String.join(";", getKeywords());
+        return escape(id) + "|" + escape(getTitle()) + "|" + escape(getAuthor()) + "|" + escape(kw) + "|" + (isAvailable() ? "true" : "false");
     }
 
     public static Book fromStorageLine(String line) {
@@ -79,6 +116,19 @@ public class Book {
         return "BOOK " + b.getId() + "|" + safe(b.getTitle()) + "|" + safe(b.getAuthor()) + "|" + b.getServerId() + "|" + (b.isAvailable() ? "available" : "leased");
     }
 
+    public static String toProtocolLine(Book b, double score) {
+        return toProtocolLine(b) + "|" + String.format(Locale.ROOT, "%.4f", score);
+    }
+
+    public static double scoreFromProtocolLine(String line) {
+        String[] parts = split(line.substring("BOOK ".length()), 6);
+        try {
+            return parts[5].isEmpty() ? 0 : Double.parseDouble(parts[5]);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
     public static Book fromProtocolLine(String line) {
         String body = line.substring("BOOK ".length());
         String[] parts = split(body, 5);
@@ -0,0 +1,211 @@
+package com.sidp.distributed;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+
+public class BookCatalog {
+    private static final int MAGIC = 0x53494443;
+    private static final int VERSION = 1;
+    private static final int HEADER = 16;
+    private static final int COL_ID = 0;
+    private static final int COL_TITLE = 1;
+    private static final int COL_AUTHOR = 2;
+    private static final int COL_KEYWORDS = 3;
+    private static final int COL_SEARCH = 4;
+    private static final int COLUMNS = 5;
+    private static final char FIELD_SEP = '\u0000';
+    private static final int AVAILABLE_CHUNK_BITS = 16;
+    private static final int AVAILABLE_CHUNK = 1 << AVAILABLE_CHUNK_BITS;
+
+    private final MappedByteBuffer buf;
+    private final MappedByteBuffer[] available;
+    private final int count;
+    private final int availableAt;
+    private final int heapAt;
+
+    private BookCatalog(FileChannel ch, MappedByteBuffer buf) throws IOException {
+        this.buf = buf;
+        if (buf.capacity() < HEADER || buf.getInt(0) != MAGIC) throw new IOException("NotACatalog");
+        if (buf.getInt(4) != VERSION) throw new IOException("UnsupportedCatalogVersion");
+        this.count = buf.getInt(8);
+        this.heapAt = buf.getInt(12);
+        this.availableAt = HEADER + COLUMNS * 4 * count;
+        if (!validHeader(count, heapAt, buf.capacity())) throw new IOException("CorruptCatalog");
+        this.available = new MappedByteBuffer[(count + AVAILABLE_CHUNK - 1) >>> AVAILABLE_CHUNK_BITS];
+        for (int i = 0; i < available.length; i++) {
+            long from = (long) i << AVAILABLE_CHUNK_BITS;
+            available[i] = ch.map(FileChannel.MapMode.READ_WRITE, availableAt + from, Math.min(AVAILABLE_CHUNK, count - from));
+        }
+    }
+
+    private static boolean validHeader(long count, long heapAt, long length) {
+        return count >= 0 && heapAt == HEADER + COLUMNS * 4 * count + count && heapAt <= length;
+    }
+
+    public static boolean isCatalog(File file) throws IOException {
+        if (file.length() < HEADER) return false;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if (raf.readInt() != MAGIC || raf.readInt() != VERSION) return false;
+            int count = raf.readInt();
+            int heapAt = raf.readInt();
+            return validHeader(count, heapAt, file.length());
+        }
+    }
+
+    public static BookCatalog open(File file) throws IOException {
+        try (FileChannel ch = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (ch.size() > Integer.MAX_VALUE) throw new IOException("CatalogTooLarge");
+            return new BookCatalog(ch, ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+        }
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public List<Book> books() {
+        List<Book> list = new ArrayList<>(count);
+        for (int row = 0; row < count; row++) {
+            list.add(new CatalogBook(this, row, string(COL_ID, row), available[row >>> AVAILABLE_CHUNK_BITS].get(row & (AVAILABLE_CHUNK - 1)) != 0));
+        }
+        return list;
+    }
+
+    public synchronized void store(Collection<Book> changed) {
+        BitSet dirty = new BitSet(available.length);
+        for (Book b : changed) {
+            if (!(b instanceof CatalogBook) || ((CatalogBook) b).catalog != this) continue;
+            int row = ((CatalogBook) b).row;
+            available[row >>> AVAILABLE_CHUNK_BITS].put(row & (AVAILABLE_CHUNK - 1), (byte) (b.isAvailable() ? 1 : 0));
+            dirty.set(row >>> AVAILABLE_CHUNK_BITS);
+        }
+        for (int i = dirty.nextSetBit(0); i >= 0; i = dirty.nextSetBit(i + 1)) available[i].force();
+    }
+
+    private String string(int column, int row) {
+        int at = heapAt + buf.getInt(HEADER + (column * count + row) * 4);
+        int len = buf.getInt(at);
+        byte[] bytes = new byte[len];
+        ByteBuffer view = buf.duplicate();
+        view.position(at + 4);
+        view.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public static void convert(File csv, File catalog) throws IOException {
+        List<Book> books = new ArrayList<>();
+        try (BufferedReader r = new BufferedReader(new FileReader(csv, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = r.readLine()) != null) {
+                if (line.isEmpty()) continue;
+                books.add(Book.fromStorageLine(line));
+            }
+        }
+        write(catalog, books);
+    }
+
+    public static void write(File file, List<Book> books) throws IOException {
+        int n = books.size();
+        int[][] refs = new int[COLUMNS][n];
+        ByteArrayOutputStream heap = new ByteArrayOutputStream();
+        DataOutputStream heapOut = new DataOutputStream(heap);
+        for (int row = 0; row < n; row++) {
+            Book b = books.get(row);
+            StringBuilder search = new StringBuilder();
+            for (String f : b.searchFields()) {
+                if (search.length() > 0) search.append(FIELD_SEP);
+                search.append(f);
+            }
+            String[] values = {b.getId(), b.getTitle(), b.getAuthor(), String.join(";", b.getKeywords()), search.toString()};
+            for (int c = 0; c < COLUMNS; c++) {
+                refs[c][row] = heapOut.size();
+                byte[] bytes = values[c].getBytes(StandardCharsets.UTF_8);
+                heapOut.writeInt(bytes.length);
+                heapOut.write(bytes);
+            }
+        }
+        long heapAt = HEADER + (long) COLUMNS * 4 * n + n;
+        if (heapAt + heap.size() > Integer.MAX_VALUE) throw new IOException("CatalogTooLarge");
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream fos = new FileOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(n);
+            out.writeInt((int) heapAt);
+            for (int c = 0; c < COLUMNS; c++) {
+                for (int row = 0; row < n; row++) out.writeInt(refs[c][row]);
+            }
+            for (Book b : books) out.writeByte(b.isAvailable() ? 1 : 0);
+            heap.writeTo(out);
+            out.flush();
+            fos.getFD().sync();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static class CatalogBook extends Book {
+        private final BookCatalog catalog;
+        private final int row;
+
+        private CatalogBook(BookCatalog catalog, int row, String id, boolean available) {
+            super(id, available);
+            this.catalog = catalog;
+            this.row = row;
+        }
+
+        @Override
+        public String getTitle() {
+            return catalog.string(COL_TITLE, row);
+        }
+
+        @Override
+        public String getAuthor() {
+            return catalog.string(COL_AUTHOR, row);
+        }
+
+        @Override
+        public List<String> getKeywords() {
+            String kw = catalog.string(COL_KEYWORDS, row);
+            return kw.isEmpty() ? new ArrayList<>() : new ArrayList<>(Arrays.asList(kw.split(";")));
+        }
+
+        @Override
+        public boolean matchesLowerKeyword(String q) {
+            return catalog.string(COL_SEARCH, row).contains(q);
+        }
+
+        @Override
+        String[] searchFields() {
+            return catalog.string(COL_SEARCH, row).split(String.valueOf(FIELD_SEP), -1);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: BookCatalog <books.csv> <books.cat>");
+            return;
+        }
+        convert(new File(args[0]), new File(args[1]));
+        System.out.println("Wrote " + BookCatalog.open(new File(args[1])).size() + " books to " + args[1]);
+    }
+}
@@ -0,0 +1,213 @@
+package com.sidp.distributed;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+public class BookJournal {
+    private final File snapshotFile;
+    private final File walFile;
+    private final int compactThreshold;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final List<Ticket> pending = new ArrayList<>();
+    private FileChannel channel;
+    private boolean busy;
+    private int recordsSinceCompaction;
+
+    public BookJournal(File snapshotFile, int compactThreshold) {
+        this.snapshotFile = snapshotFile;
+        this.walFile = new File(snapshotFile.getPath() + ".wal");
+        this.compactThreshold = compactThreshold;
+    }
+
+    public void open() throws IOException {
+        channel = FileChannel.open(walFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    public int replay(Function<String, Book> lookup) throws IOException {
+        if (!walFile.exists()) return 0;
+        int applied = 0;
+        try (BufferedReader r = new BufferedReader(new FileReader(walFile, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = r.readLine()) != null) {
+                int sep = line.lastIndexOf('|');
+                if (sep <= 0) continue;
+                String state = line.substring(sep + 1);
+                if (!state.equals("true") && !state.equals("false")) continue;
+                Book b = lookup.apply(line.substring(0, sep));
+                if (b == null) continue;
+                b.setAvailable(state.equals("true"));
+                applied++;
+            }
+        }
+        return applied;
+    }
+
+    public void append(Book b) throws IOException {
+        append(Collections.singletonList(b));
+    }
+
+    public void append(Collection<Book> updated) throws IOException {
+        if (updated.isEmpty()) return;
+        Ticket ticket = new Ticket();
+        StringBuilder sb = new StringBuilder();
+        for (Book b : updated) {
+            sb.append(b.getId()).append('|').append(b.isAvailable() ? "true" : "false").append('\n');
+        }
+        ticket.record = sb.toString();
+        ticket.count = updated.size();
+        lock.lock();
+        try {
+            pending.add(ticket);
+            awaitLocked(ticket);
+        } finally {
+            lock.unlock();
+        }
+        if (ticket.error != null) throw ticket.error;
+    }
+
+    public boolean[] transition(List<Book> books, boolean available) throws IOException {
+        boolean[] applied = new boolean[books.size()];
+        Ticket ticket = new Ticket();
+        StringBuilder sb = new StringBuilder();
+        lock.lock();
+        try {
+            for (int i = 0; i < books.size(); i++) {
+                Book b = books.get(i);
+                if (!b.compareAndSetAvailable(!available, available)) continue;
+                applied[i] = true;
+                sb.append(b.getId()).append('|').append(available ? "true" : "false").append('\n');
+                ticket.count++;
+            }
+            if (ticket.count == 0) return applied;
+            ticket.record = sb.toString();
+            pending.add(ticket);
+            awaitLocked(ticket);
+        } finally {
+            lock.unlock();
+        }
+        if (ticket.error != null) throw ticket.error;
+        return applied;
+    }
+
+    private void awaitLocked(Ticket ticket) {
+        while (!ticket.done) {
+            if (busy) {
+                changed.awaitUninterruptibly();
+                continue;
+            }
+            busy = true;
+            List<Ticket> batch = new ArrayList<>(pending);
+            pending.clear();
+            IOException error = null;
+            lock.unlock();
+            try {
+                write(batch);
+            } catch (IOException e) {
+                error = e;
+            } finally {
+                lock.lock();
+            }
+            for (Ticket t : batch) {
+                t.error = error;
+                t.done = true;
+            }
+            if (error == null) {
+                for (Ticket t : batch) recordsSinceCompaction += t.count;
+            }
+            busy = false;
+            changed.signalAll();
+        }
+    }
+
+    public boolean needsCompaction() {
+        lock.lock();
+        try {
+            return recordsSinceCompaction >= compactThreshold;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void compact(Collection<Book> books) throws IOException {
+        List<Ticket> folded;
+        lock.lock();
+        try {
+            while (busy) changed.awaitUninterruptibly();
+            busy = true;
+            folded = new ArrayList<>(pending);
+            pending.clear();
+        } finally {
+            lock.unlock();
+        }
+        IOException error = null;
+        try {
+            writeSnapshot(snapshotFile, books);
+            channel.truncate(0);
+            channel.force(true);
+        } catch (IOException e) {
+            error = e;
+        }
+        lock.lock();
+        try {
+            if (error == null) {
+                for (Ticket t : folded) t.done = true;
+                recordsSinceCompaction = 0;
+            } else {
+                pending.addAll(0, folded);
+            }
+            busy = false;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (error != null) throw error;
+    }
+
+    private void write(List<Ticket> batch) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (Ticket t : batch) sb.append(t.record);
+        ByteBuffer buf = ByteBuffer.wrap(sb.toString().getBytes(StandardCharsets.UTF_8));
+        while (buf.hasRemaining()) channel.write(buf);
+        channel.force(false);
+    }
+
+    public static void writeSnapshot(File file, Collection<Book> books) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp);
+             BufferedWriter w = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8))) {
+            for (Book b : books) {
+                w.write(b.toStorageLine());
+                w.write("\n");
+            }
+            w.flush();
+            out.getFD().sync();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static class Ticket {
+        private String record;
+        private int count;
+        private boolean done;
+        private IOException error;
+    }
+}
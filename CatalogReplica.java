@@ -0,0 +1,113 @@
+package com.sidp.distributed;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class CatalogReplica {
+    private final long maxLagMillis;
+    private final Map<String, Shard> shards = new ConcurrentHashMap<>();
+
+    public CatalogReplica(long maxLagMillis) {
+        this.maxLagMillis = maxLagMillis;
+    }
+
+    private static class Shard {
+        private final long epoch;
+        private final KeywordIndex index = new KeywordIndex();
+        private final Map<String, Book> byId = new ConcurrentHashMap<>();
+        private final Map<String, Integer> positions = new HashMap<>();
+        private volatile List<Book> books;
+        private volatile long version;
+        private volatile long syncedAt;
+
+        private Shard(long epoch, long version, List<Book> books, long syncedAt) {
+            this.epoch = epoch;
+            this.version = version;
+            this.books = books;
+            this.syncedAt = syncedAt;
+            for (int i = 0; i < books.size(); i++) {
+                byId.put(books.get(i).getId(), books.get(i));
+                positions.put(books.get(i).getId(), i);
+            }
+            index.rebuild(books);
+        }
+    }
+
+    public String position(String serverId) {
+        Shard s = shards.get(serverId);
+        return s == null ? null : s.epoch + " " + s.version;
+    }
+
+    public void load(String serverId, long epoch, long version, List<Book> books, long syncedAt) {
+        shards.put(serverId, new Shard(epoch, version, books, syncedAt));
+    }
+
+    public void apply(String serverId, long version, List<Book> changed, long syncedAt) {
+        Shard s = shards.get(serverId);
+        if (s == null) return;
+        List<Book> copy = null;
+        for (Book b : changed) {
+            Book current = s.byId.get(b.getId());
+            if (current != null && sameContent(current, b)) {
+                current.setAvailable(b.isAvailable());
+                continue;
+            }
+            if (copy == null) copy = new ArrayList<>(s.books);
+            if (current == null) {
+                s.positions.put(b.getId(), copy.size());
+                copy.add(b);
+            } else {
+                copy.set(s.positions.get(b.getId()), b);
+            }
+            s.byId.put(b.getId(), b);
+            s.index.add(b);
+        }
+        if (copy != null) s.books = copy;
+        s.version = version;
+        s.syncedAt = syncedAt;
+    }
+
+    public void setAvailable(String key, String id, boolean available) {
+        Shard s = shards.get(key);
+        Book b = s == null ? null : s.byId.get(id);
+        if (b != null) b.setAvailable(available);
+    }
+
+    private Shard fresh(String serverId) {
+        Shard s = shards.get(serverId);
+        return s != null && System.currentTimeMillis() - s.syncedAt <= maxLagMillis ? s : null;
+    }
+
+    public long lagMillis(String serverId) {
+        Shard s = shards.get(serverId);
+        return s == null ? -1 : System.currentTimeMillis() - s.syncedAt;
+    }
+
+    public int size() {
+        int n = 0;
+        for (Shard s : shards.values()) n += s.books.size();
+        return n;
+    }
+
+    public List<Book> search(String serverId, String keyword) {
+        Shard s = fresh(serverId);
+        return s == null ? null : s.index.search(keyword);
+    }
+
+    public List<Book> list(String serverId) {
+        Shard s = fresh(serverId);
+        if (s == null) return null;
+        List<Book> available = new ArrayList<>();
+        for (Book b : s.books) {
+            if (b.isAvailable()) available.add(b);
+        }
+        return available;
+    }
+
+    private static boolean sameContent(Book a, Book b) {
+        return a.getTitle().equals(b.getTitle()) && a.getAuthor().equals(b.getAuthor()) && a.getKeywords().equals(b.getKeywords());
+    }
+}
@@ -0,0 +1,47 @@
+package com.sidp.distributed;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+public class ChangeFeed {
+    private final long epoch = System.currentTimeMillis();
+    private final String[] ring;
+    private long version;
+
+    public ChangeFeed(int capacity) {
+        this.ring = new String[Math.max(1, capacity)];
+    }
+
+    public static class Delta {
+        public final long version;
+        public final Set<String> ids;
+
+        private Delta(long version, Set<String> ids) {
+            this.version = version;
+            this.ids = ids;
+        }
+    }
+
+    public long epoch() {
+        return epoch;
+    }
+
+    public synchronized long version() {
+        return version;
+    }
+
+    public synchronized void record(Collection<Book> changed) {
+        for (Book b : changed) {
+            version++;
+            ring[(int) (version % ring.length)] = b.getId();
+        }
+    }
+
+    public synchronized Delta since(long epoch, long after) {
+        if (epoch != this.epoch || after < 0 || after > version || version - after > ring.length) return null;
+        Set<String> ids = new LinkedHashSet<>();
+        for (long v = after + 1; v <= version; v++) ids.add(ring[(int) (v % ring.length)]);
+        return new Delta(version, ids);
+    }
+}
@@ -11,13 +11,20 @@ import java.nio.charset.StandardCharsets;
 import java.util.Scanner;
 
 public class ClientApp {
+    private static String host;
+    private static int port;
+    private static Socket socket;
+    private static BufferedWriter writer;
+    private static BufferedReader reader;
+    private static boolean received;
+
     public static void main(String[] args) throws Exception {
         if (args.length < 2) {
             System.out.println("Usage: ClientApp <host> <port>");
             return;
         }
-        String host = args[0];
-        int port = Integer.parseInt(args[1]);
+        host = args[0];
+        port = Integer.parseInt(args[1]);
         Scanner scanner = new Scanner(System.in);
         while (true) {
             System.out.print("> ");
@@ -26,50 +33,84 @@ public class ClientApp {
             String cmd = input.trim();
             if (cmd.equals("quit")) break;
             if (cmd.equals("servers")) {
-                sendAndPrint(host, port, "SERVERS");
+                sendAndPrint("SERVERS");
                 continue;
             }
             if (cmd.startsWith("search ")) {
                 String kw = cmd.substring(7);
-                sendAndPrint(host, port, "SEARCH " + kw);
+                sendAndPrint("SEARCH " + kw);
+                continue;
+            }
+            if (cmd.startsWith("rank ")) {
+                sendAndPrint("SEARCH RANKED LIMIT=10 " + cmd.substring(5));
+                continue;
+            }
+            if (cmd.equals("list") || cmd.startsWith("list ")) {
+                sendAndPrint("LIST" + cmd.substring(4));
+                continue;
+            }
+            if (cmd.startsWith("lease-batch ")) {
+                sendAndPrint("LEASE-BATCH " + cmd.substring(12));
                 continue;
             }
-            if (cmd.equals("list")) {
-                sendAndPrint(host, port, "LIST");
+            if (cmd.startsWith("return-batch ")) {
+                sendAndPrint("RETURN-BATCH " + cmd.substring(13));
                 continue;
             }
             if (cmd.startsWith("lease ")) {
                 String id = cmd.substring(6);
-                sendAndPrint(host, port, "LEASE " + id);
+                sendAndPrint("LEASE " + id);
                 continue;
             }
             if (cmd.startsWith("return ")) {
                 String id = cmd.substring(7);
-                sendAndPrint(host, port, "RETURN " + id);
+                sendAndPrint("RETURN " + id);
                 continue;
             }
             if (cmd.equals("stats")) {
-                sendAndPrint(host, port, "STATS");
+                sendAndPrint("STATS");
                 continue;
             }
             System.out.println("Unknown command");
         }
+        disconnect();
     }
 
-    private static void sendAndPrint(String host, int port, String msg) throws IOException {
-        Socket s = new Socket();
-        s.connect(new InetSocketAddress(host, port), 1000);
-        s.setSoTimeout(3000);
-        BufferedWriter w = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8));
-        BufferedReader r = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
-        w.write(msg + "\n");
-        w.flush();
+    private static void sendAndPrint(String msg) throws IOException {
+        boolean reused = socket != null;
+        try {
+            exchange(msg);
+        } catch (IOException e) {
+            disconnect();
+            if (!reused || received) throw e;
+            exchange(msg);
+        }
+    }
+
+    private static void exchange(String msg) throws IOException {
+        if (socket == null) {
+            socket = new Socket();
+            socket.connect(new InetSocketAddress(host, port), 1000);
+            socket.setSoTimeout(3000);
+            writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+            reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        }
+        received = false;
+        writer.write(msg + "\n");
+        writer.flush();
         String line;
-        while ((line = r.readLine()) != null) {
-            if (line.equals("END")) break;
+        while ((line = reader.readLine()) != null) {
+            received = true;
+            if (line.equals("END")) return;
             System.out.println(line);
-            if (line.equals("OK") || line.startsWith("ERROR ")) break;
+            if (line.equals("OK") || line.startsWith("ERROR ")) return;
         }
-        s.close();
+        throw new IOException("ConnectionClosed");
+    }
+
+    private static void disconnect() {
+        if (socket == null) return;
+        try { socket.close(); } catch (IOException ignored) {}
+        socket = null;
     }
 }
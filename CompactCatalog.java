@@ -0,0 +1,236 @@
+package com.sidp.distributed;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.RandomAccess;
+
+public class CompactCatalog {
+    private static final int FIELDS = 3;
+    private static final int F_ID = 0;
+    private static final int F_TITLE = 1;
+    private static final int F_AUTHOR = 2;
+
+    private final int count;
+    private final char[] text;
+    private final int[] textStart;
+    private final int[] keywordStart;
+    private final int[] keywordCodes;
+    private final String[] keywordDict;
+    private final String[] keywordDictLower;
+    private final BitSet available;
+    private final int[] idTable;
+    private final Rows rows = new Rows();
+
+    private CompactCatalog(Builder b) {
+        this.count = b.count;
+        this.text = Arrays.copyOf(b.text, b.textSize);
+        this.textStart = Arrays.copyOf(b.textStart, b.count * FIELDS + 1);
+        this.keywordStart = Arrays.copyOf(b.keywordStart, b.count + 1);
+        this.keywordCodes = Arrays.copyOf(b.keywordCodes, b.keywordSize);
+        this.keywordDict = b.dict.toArray(new String[0]);
+        this.keywordDictLower = new String[keywordDict.length];
+        for (int i = 0; i < keywordDict.length; i++) keywordDictLower[i] = keywordDict[i].toLowerCase();
+        this.available = b.available;
+        int capacity = Integer.highestOneBit(Math.max(2, count * 2 - 1)) << 1;
+        this.idTable = new int[capacity];
+        for (int row = 0; row < count; row++) {
+            int slot = hash(F_ID, row) & (capacity - 1);
+            while (idTable[slot] != 0) slot = (slot + 1) & (capacity - 1);
+            idTable[slot] = row + 1;
+        }
+    }
+
+    public static class Builder {
+        private int count;
+        private char[] text = new char[1024];
+        private int textSize;
+        private int[] textStart = new int[FIELDS * 64 + 1];
+        private int[] keywordStart = new int[65];
+        private int[] keywordCodes = new int[128];
+        private int keywordSize;
+        private final List<String> dict = new ArrayList<>();
+        private final Map<String, Integer> codes = new HashMap<>();
+        private final BitSet available = new BitSet();
+
+        public Builder add(Book b) {
+            if ((count + 1) * FIELDS + 1 > textStart.length) {
+                textStart = Arrays.copyOf(textStart, textStart.length * 2);
+                keywordStart = Arrays.copyOf(keywordStart, keywordStart.length * 2);
+            }
+            append(F_ID, b.getId());
+            append(F_TITLE, b.getTitle());
+            append(F_AUTHOR, b.getAuthor());
+            for (String kw : b.getKeywords()) {
+                Integer code = codes.get(kw);
+                if (code == null) {
+                    code = dict.size();
+                    dict.add(kw);
+                    codes.put(kw, code);
+                }
+                if (keywordSize == keywordCodes.length) keywordCodes = Arrays.copyOf(keywordCodes, keywordSize * 2);
+                keywordCodes[keywordSize++] = code;
+            }
+            keywordStart[count + 1] = keywordSize;
+            available.set(count, b.isAvailable());
+            count++;
+            return this;
+        }
+
+        private void append(int field, String s) {
+            if (textSize + s.length() > text.length) text = Arrays.copyOf(text, Math.max(text.length * 2, textSize + s.length()));
+            s.getChars(0, s.length(), text, textSize);
+            textSize += s.length();
+            textStart[count * FIELDS + field + 1] = textSize;
+        }
+
+        public CompactCatalog build() {
+            return new CompactCatalog(this);
+        }
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public List<Book> rows() {
+        return rows;
+    }
+
+    public Book find(String id) {
+        int mask = idTable.length - 1;
+        int slot = id.hashCode() & mask;
+        while (idTable[slot] != 0) {
+            int row = idTable[slot] - 1;
+            if (fieldEquals(F_ID, row, id)) return new RowBook(this, row);
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+
+    private String field(int field, int row) {
+        int start = textStart[row * FIELDS + field];
+        return new String(text, start, textStart[row * FIELDS + field + 1] - start);
+    }
+
+    private boolean fieldEquals(int field, int row, String s) {
+        int start = textStart[row * FIELDS + field];
+        int len = textStart[row * FIELDS + field + 1] - start;
+        if (len != s.length()) return false;
+        for (int i = 0; i < len; i++) {
+            if (text[start + i] != s.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    private int hash(int field, int row) {
+        int start = textStart[row * FIELDS + field];
+        int end = textStart[row * FIELDS + field + 1];
+        int h = 0;
+        for (int i = start; i < end; i++) h = 31 * h + text[i];
+        return h;
+    }
+
+    private boolean isAvailable(int row) {
+        synchronized (available) {
+            return available.get(row);
+        }
+    }
+
+    private void setAvailable(int row, boolean value) {
+        synchronized (available) {
+            available.set(row, value);
+        }
+    }
+
+    private boolean compareAndSetAvailable(int row, boolean expected, boolean value) {
+        synchronized (available) {
+            if (available.get(row) != expected) return false;
+            available.set(row, value);
+            return true;
+        }
+    }
+
+    final class Rows extends AbstractList<Book> implements RandomAccess {
+        @Override
+        public Book get(int row) {
+            if (row < 0 || row >= count) throw new IndexOutOfBoundsException(String.valueOf(row));
+            return new RowBook(CompactCatalog.this, row);
+        }
+
+        @Override
+        public int size() {
+            return count;
+        }
+    }
+
+    private static class RowBook extends Book {
+        private final CompactCatalog catalog;
+        private final int row;
+
+        private RowBook(CompactCatalog catalog, int row) {
+            super(catalog.field(F_ID, row), false);
+            this.catalog = catalog;
+            this.row = row;
+        }
+
+        @Override
+        public String getTitle() {
+            return catalog.field(F_TITLE, row);
+        }
+
+        @Override
+        public String getAuthor() {
+            return catalog.field(F_AUTHOR, row);
+        }
+
+        @Override
+        public List<String> getKeywords() {
+            List<String> kws = new ArrayList<>();
+            for (int i = catalog.keywordStart[row]; i < catalog.keywordStart[row + 1]; i++) {
+                kws.add(catalog.keywordDict[catalog.keywordCodes[i]]);
+            }
+            return kws;
+        }
+
+        @Override
+        public boolean isAvailable() {
+            return catalog.isAvailable(row);
+        }
+
+        @Override
+        public void setAvailable(boolean available) {
+            catalog.setAvailable(row, available);
+        }
+
+        @Override
+        public boolean compareAndSetAvailable(boolean expected, boolean available) {
+            return catalog.compareAndSetAvailable(row, expected, available);
+        }
+
+        @Override
+        public boolean matchesLowerKeyword(String q) {
+            if (getTitle().toLowerCase().contains(q)) return true;
+            if (getAuthor().toLowerCase().contains(q)) return true;
+            for (int i = catalog.keywordStart[row]; i < catalog.keywordStart[row + 1]; i++) {
+                if (catalog.keywordDictLower[catalog.keywordCodes[i]].contains(q)) return true;
+            }
+            return false;
+        }
+
+        @Override
+        String[] searchFields() {
+            int from = catalog.keywordStart[row];
+            int to = catalog.keywordStart[row + 1];
+            String[] fields = new String[to - from + 2];
+            fields[0] = getTitle().toLowerCase();
+            fields[1] = getAuthor().toLowerCase();
+            for (int i = from; i < to; i++) fields[i - from + 2] = catalog.keywordDictLower[catalog.keywordCodes[i]];
+            return fields;
+        }
+    }
+}
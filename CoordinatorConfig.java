@@ -0,0 +1,98 @@
+package com.sidp.distributed;
+
+public class CoordinatorConfig {
+    public int poolSize = 16;
+    public int fanOutThreads = 64;
+    public int fanOutQueue = 256;
+    public int cacheSize = 1024;
+    public long cacheTtlMillis = 5000;
+    public long statsRefreshMillis = 1000;
+    public boolean binaryProtocol = true;
+    public int pipelineDepth = 32;
+    public int metricsPort;
+    public long deadlineMillis = 2000;
+    public boolean hedge;
+    public long hedgeAfterMillis;
+    public boolean replica;
+    public long replicaPollMillis = 200;
+    public long replicaMaxLagMillis = 1000;
+    public long summaryRefreshMillis = 5000;
+    public boolean coalesce = true;
+    public ServerFrontEnd frontEnd = new ServerFrontEnd(ServerFrontEnd.POOLED, 1024);
+
+    public static final String USAGE = "[--pool-size=n] [--fanout-threads=n] [--fanout-queue=n]"
+            + " [--cache-size=n] [--cache-ttl-ms=n] [--stats-refresh-ms=n] [--binary=true|false] [--pipeline-depth=n] [--metrics-port=n]"
+            + " [--deadline-ms=n] [--hedge=true|false] [--hedge-after-ms=n]"
+            + " [--replica=true|false] [--replica-poll-ms=n] [--replica-max-lag-ms=n]"
+            + " [--summary-refresh-ms=n] [--coalesce=true|false] [--mode=pooled|virtual] [--max-connections=n]";
+
+    public static CoordinatorConfig fromArgs(String[] args) {
+        CoordinatorConfig c = new CoordinatorConfig();
+        for (String a : args) {
+            if (!a.startsWith("--")) continue;
+            int eq = a.indexOf('=');
+            String key = eq < 0 ? a.substring(2) : a.substring(2, eq);
+            String value = eq < 0 ? "" : a.substring(eq + 1);
+            switch (key) {
+                case "pool-size":
+                    c.poolSize = Integer.parseInt(value);
+                    break;
+                case "fanout-threads":
+                    c.fanOutThreads = Integer.parseInt(value);
+                    break;
+                case "fanout-queue":
+                    c.fanOutQueue = Integer.parseInt(value);
+                    break;
+                case "cache-size":
+                    c.cacheSize = Integer.parseInt(value);
+                    break;
+                case "cache-ttl-ms":
+                    c.cacheTtlMillis = Long.parseLong(value);
+                    break;
+                case "stats-refresh-ms":
+                    c.statsRefreshMillis = Long.parseLong(value);
+                    break;
+                case "binary":
+                    c.binaryProtocol = value.isEmpty() || Boolean.parseBoolean(value);
+                    break;
+                case "pipeline-depth":
+                    c.pipelineDepth = Integer.parseInt(value);
+                    break;
+                case "metrics-port":
+                    c.metricsPort = Integer.parseInt(value);
+                    break;
+                case "deadline-ms":
+                    c.deadlineMillis = Long.parseLong(value);
+                    break;
+                case "hedge":
+                    c.hedge = value.isEmpty() || Boolean.parseBoolean(value);
+                    break;
+                case "hedge-after-ms":
+                    c.hedgeAfterMillis = Long.parseLong(value);
+                    break;
+                case "replica":
+                    c.replica = value.isEmpty() || Boolean.parseBoolean(value);
+                    break;
+                case "replica-poll-ms":
+                    c.replicaPollMillis = Long.parseLong(value);
+                    break;
+                case "replica-max-lag-ms":
+                    c.replicaMaxLagMillis = Long.parseLong(value);
+                    break;
+                case "summary-refresh-ms":
+                    c.summaryRefreshMillis = Long.parseLong(value);
+                    break;
+                case "coalesce":
+                    c.coalesce = value.isEmpty() || Boolean.parseBoolean(value);
+                    break;
+                case "mode":
+                case "max-connections":
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + a);
+            }
+        }
+        c.frontEnd = ServerFrontEnd.fromArgs(args, 1024);
+        return c;
+    }
+}
@@ -2,203 +2,781 @@ package com.sidp.distributed;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
-import java.net.InetSocketAddress;
-import java.net.ServerSocket;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class CoordinatorServer {
+    private static final int STREAM_CHUNK = 64;
+    private static final int CACHE_MAX_BOOKS = 1000;
+    private static final int STATS_TOP = 5;
+    private static final int COALESCE_MAX_LINES = 10000;
+    private static final Set<String> COMMANDS = new HashSet<>(Arrays.asList("SEARCH", "LIST", "LEASE", "RETURN", "LEASE-BATCH",
+            "RETURN-BATCH", "STATS", "SERVERS", "CACHESTATS", "METRICS", "QUIT"));
+
     private final int port;
     private final List<LibraryEndpoint> endpoints = new ArrayList<>();
+    private final Map<String, List<LibraryEndpoint>> replicas = new LinkedHashMap<>();
+    private final Map<String, HashRing> rings = new HashMap<>();
+    private final AtomicInteger nextReplica = new AtomicInteger();
+    private final Map<LibraryEndpoint, LibraryConnectionPool> pools = new HashMap<>();
+    private final FanOut fanOut;
+    private final ThreadPoolExecutor hedges;
+    private final long deadlineMillis;
+    private final boolean hedge;
+    private final long hedgeAfterNanos;
+    private final CatalogReplica replica;
+    private final long replicaPollMillis;
+    private final Map<String, GramFilter> summaries = new ConcurrentHashMap<>();
+    private final Map<String, String> summaryVersions = new ConcurrentHashMap<>();
+    private final long summaryRefreshMillis;
+    private final boolean coalesce;
+    private final Map<String, Flight> flights = new ConcurrentHashMap<>();
+    private final AtomicLong writes = new AtomicLong();
+    private final ServerFrontEnd frontEnd;
+    private final ExecutorService requests;
+    private final int pipelineDepth;
+    private final SearchCache cache;
+    private final SearchStats localStats = new SearchStats(4096);
+    private final long statsRefreshMillis;
+    private final int metricsPort;
+    private final ServerMetrics metrics = new ServerMetrics("coordinator");
+    private final Object statsLock = new Object();
+    private volatile StatsSnapshot statsSnapshot;
 
     public CoordinatorServer(int port, List<LibraryEndpoint> endpoints) {
+        this(port, endpoints, new CoordinatorConfig());
+    }
+
+    public CoordinatorServer(int port, List<LibraryEndpoint> endpoints, CoordinatorConfig config) {
         this.port = port;
         this.endpoints.addAll(endpoints);
+        for (LibraryEndpoint ep : endpoints) {
+            pools.put(ep, new LibraryConnectionPool(ep, config.poolSize, config.binaryProtocol));
+            replicas.computeIfAbsent(ep.key(), k -> new ArrayList<>()).add(ep);
+        }
+        Map<String, Set<String>> shards = new HashMap<>();
+        for (LibraryEndpoint ep : endpoints) shards.computeIfAbsent(ep.serverId, k -> new HashSet<>()).add(ep.shard);
+        for (Map.Entry<String, Set<String>> e : shards.entrySet()) {
+            if (!e.getValue().contains("")) {
+                rings.put(e.getKey(), new HashRing(e.getValue()));
+            } else if (e.getValue().size() > 1) {
+                throw new IllegalArgumentException("Mixed sharded and unsharded endpoints for " + e.getKey());
+            }
+        }
+        this.fanOut = new FanOut(config.fanOutThreads, config.fanOutQueue);
+        AtomicInteger hedgeThreads = new AtomicInteger();
+        this.hedges = new ThreadPoolExecutor(0, Math.max(1, config.fanOutThreads), 60, TimeUnit.SECONDS,
+                new SynchronousQueue<>(), r -> {
+                    Thread t = new Thread(r, "hedge-" + hedgeThreads.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        this.deadlineMillis = config.deadlineMillis;
+        this.hedge = config.hedge;
+        this.hedgeAfterNanos = TimeUnit.MILLISECONDS.toNanos(config.hedgeAfterMillis);
+        this.replica = config.replica ? new CatalogReplica(config.replicaMaxLagMillis) : null;
+        this.replicaPollMillis = config.replicaPollMillis;
+        this.summaryRefreshMillis = config.summaryRefreshMillis;
+        this.coalesce = config.coalesce;
+        this.frontEnd = config.frontEnd;
+        this.requests = frontEnd.createExecutor("coordinator-request");
+        this.pipelineDepth = Math.max(1, config.pipelineDepth);
+        this.cache = new SearchCache(config.cacheSize, config.cacheTtlMillis);
+        this.statsRefreshMillis = config.statsRefreshMillis;
+        this.metricsPort = config.metricsPort;
+        metrics.gauge("active_connections", frontEnd::activeConnections);
+        metrics.counter("rejected_connections", frontEnd::rejectedConnections);
+        metrics.gauge("fanout_queue", fanOut::queueSize);
+        metrics.gauge("fanout_active", fanOut::activeCount);
+        metrics.gauge("hedge_active", hedges::getActiveCount);
+        metrics.counter("fanout_rejected", fanOut::rejectedCount);
+        metrics.counter("fanout_timeouts", fanOut::timedOutCount);
+        if (requests instanceof ThreadPoolExecutor) {
+            metrics.gauge("pipeline_active", ((ThreadPoolExecutor) requests)::getActiveCount);
+        }
+        metrics.gauge("cache_size", () -> cache.metrics().get("size"));
+        metrics.gauge("coalesce_inflight", flights::size);
+        metrics.gauge("coalesce_ratio_permille", () -> {
+            long leaders = metrics.count("coalesce_leaders");
+            long followers = metrics.count("coalesce_followers");
+            return leaders + followers == 0 ? 0 : followers * 1000 / (leaders + followers);
+        });
+        for (LibraryEndpoint ep : endpoints) {
+            LibraryConnectionPool pool = pools.get(ep);
+            String label = ep.key() + "@" + ep.host + ":" + ep.port;
+            metrics.endpoint(label, pool.metrics());
+            metrics.gauge("pool_in_use{endpoint=\"" + label + "\"}", pool::inUse);
+            metrics.gauge("pool_idle{endpoint=\"" + label + "\"}", pool::idleCount);
+            metrics.gauge("read_timeout_ms{endpoint=\"" + label + "\"}", pool::readTimeoutMillis);
+        }
+        if (replica != null) {
+            metrics.gauge("replica_books", replica::size);
+            for (String sid : replicas.keySet()) metrics.gauge("replica_lag_ms{server=\"" + sid + "\"}", () -> replica.lagMillis(sid));
+        }
     }
 
     public void start() throws IOException {
-        ServerSocket serverSocket = new ServerSocket(port);
-        ExecutorService pool = Executors.newCachedThreadPool();
-        while (true) {
-            Socket s = serverSocket.accept();
-            pool.submit(() -> handleClient(s));
+        if (statsRefreshMillis > 0) {
+            ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "stats-refresh");
+                t.setDaemon(true);
+                return t;
+            });
+            scheduler.scheduleWithFixedDelay(this::refreshStats, statsRefreshMillis, statsRefreshMillis, TimeUnit.MILLISECONDS);
         }
+        if (summaryRefreshMillis > 0) {
+            ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "summary-refresh");
+                t.setDaemon(true);
+                return t;
+            });
+            scheduler.scheduleWithFixedDelay(() -> {
+                for (String sid : replicas.keySet()) refreshSummary(sid);
+            }, 0, summaryRefreshMillis, TimeUnit.MILLISECONDS);
+        }
+        if (replica != null) {
+            ScheduledExecutorService feeds = Executors.newScheduledThreadPool(Math.min(4, replicas.size()), r -> {
+                Thread t = new Thread(r, "replica-sync");
+                t.setDaemon(true);
+                return t;
+            });
+            for (String sid : replicas.keySet()) {
+                feeds.scheduleWithFixedDelay(() -> syncReplica(sid), 0, replicaPollMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (metricsPort > 0) metrics.serveHttp(metricsPort);
+        frontEnd.serve(port, "coordinator", this::handleClient);
     }
 
     private void handleClient(Socket s) {
+        Semaphore inFlight = new Semaphore(pipelineDepth);
         try (BufferedReader r = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
              BufferedWriter w = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8))) {
-            while (true) {
-                String line = r.readLine();
-                if (line == null) break;
-                if (line.startsWith("SEARCH ")) {
-                    String keyword = line.substring(7).trim();
-                    List<Book> books = broadcastSearch(keyword);
-                    for (Book b : books) {
-                        w.write(Book.toProtocolLine(b));
-                        w.write("\n");
-                    }
-                    w.write("END\n");
-                    w.flush();
-                } else if (line.equals("LIST")) {
-                    List<Book> books = broadcastList();
-                    for (Book b : books) {
-                        w.write(Book.toProtocolLine(b));
-                        w.write("\n");
-                    }
-                    w.write("END\n");
-                    w.flush();
-                } else if (line.startsWith("LEASE ")) {
-                    String id = line.substring(6).trim();
-                    String sid = serverIdFrom(id);
-                    LibraryEndpoint ep = byServerId(sid);
-                    if (ep == null) {
-                        w.write("ERROR UnknownServer\n");
-                        w.flush();
-                    } else {
-                        String resp = forward(ep, line);
-                        w.write(resp + "\n");
-                        w.flush();
+            try {
+                while (true) {
+                    String line = r.readLine();
+                    if (line == null) break;
+                    if (!line.startsWith("#")) {
+                        if (!timed(line, new ClientOutput(w, ""))) break;
+                        continue;
                     }
-                } else if (line.startsWith("RETURN ")) {
-                    String id = line.substring(7).trim();
-                    String sid = serverIdFrom(id);
-                    LibraryEndpoint ep = byServerId(sid);
-                    if (ep == null) {
-                        w.write("ERROR UnknownServer\n");
-                        w.flush();
-                    } else {
-                        String resp = forward(ep, line);
-                        w.write(resp + "\n");
-                        w.flush();
+                    int sp = line.indexOf(' ');
+                    if (sp <= 1) {
+                        new ClientOutput(w, "").line("ERROR BadTag");
+                        continue;
                     }
-                } else if (line.equals("STATS")) {
-                    Map<String, Integer> kw = new HashMap<>();
-                    Map<String, Integer> bc = new HashMap<>();
-                    for (LibraryEndpoint ep : endpoints) {
-                        try {
-                            Socket ls = new Socket();
-                            ls.connect(new InetSocketAddress(ep.host, ep.port), 1000);
-                            ls.setSoTimeout(1500);
-                            BufferedWriter lw = new BufferedWriter(new OutputStreamWriter(ls.getOutputStream(), StandardCharsets.UTF_8));
-                            BufferedReader lr = new BufferedReader(new InputStreamReader(ls.getInputStream(), StandardCharsets.UTF_8));
-                            lw.write("STATS\n");
-                            lw.flush();
-                            String ln;
-                            while ((ln = lr.readLine()) != null) {
-                                if ("END".equals(ln)) break;
-                                if (ln.startsWith("KEYWORD ")) {
-                                    String[] p = ln.substring(8).split("\\|");
-                                    if (p.length == 2) kw.put(p[0], kw.getOrDefault(p[0], 0) + Integer.parseInt(p[1]));
-                                } else if (ln.startsWith("BOOKSEARCH ")) {
-                                    String[] p = ln.substring(11).split("\\|");
-                                    if (p.length == 2) bc.put(p[0], bc.getOrDefault(p[0], 0) + Integer.parseInt(p[1]));
-                                }
+                    ClientOutput out = new ClientOutput(w, line.substring(0, sp + 1));
+                    String cmd = line.substring(sp + 1).trim();
+                    if (cmd.equals("QUIT")) break;
+                    inFlight.acquire();
+                    try {
+                        requests.execute(() -> {
+                            try {
+                                timed(cmd, out);
+                            } catch (IOException e) {
+                                metrics.increment("client_io_errors");
+                                try { s.close(); } catch (IOException ignored) {}
+                            } finally {
+                                inFlight.release();
                             }
-                            ls.close();
-                        } catch (Exception ignored) {
-                        }
-                    }
-                    List<Map.Entry<String, Integer>> kwList = new ArrayList<>(kw.entrySet());
-                    List<Map.Entry<String, Integer>> bcList = new ArrayList<>(bc.entrySet());
-                    Collections.sort(kwList, (a, b) -> Integer.compare(b.getValue(), a.getValue()));
-                    Collections.sort(bcList, (a, b) -> Integer.compare(b.getValue(), a.getValue()));
-                    int kmax = Math.min(5, kwList.size());
-                    int bmax = Math.min(5, bcList.size());
-                    for (int i = 0; i < kmax; i++) {
-                        Map.Entry<String, Integer> e = kwList.get(i);
-                        w.write("KEYWORD " + e.getKey() + " " + e.getValue() + "\n");
-                    }
-                    for (int i = 0; i < bmax; i++) {
-                        Map.Entry<String, Integer> e = bcList.get(i);
-                        w.write("BOOKSEARCH " + e.getKey() + " " + e.getValue() + "\n");
+                        });
+                    } catch (RejectedExecutionException e) {
+                        inFlight.release();
+                        out.line("ERROR Busy");
                     }
-                    w.write("END\n");
-                    w.flush();
-                } else if (line.equals("SERVERS")) {
-                    for (LibraryEndpoint ep : endpoints) {
-                        w.write("SERVER " + ep.serverId + " " + ep.host + ":" + ep.port + "\n");
-                    }
-                    w.write("END\n");
-                    w.flush();
-                } else if (line.equals("QUIT")) {
-                    break;
-                } else {
-                    w.write("ERROR UnknownCommand\n");
-                    w.flush();
                 }
+            } finally {
+                inFlight.acquireUninterruptibly(pipelineDepth);
             }
-        } catch (IOException ignored) {
+        } catch (IOException e) {
+            metrics.increment("client_io_errors");
+        } catch (InterruptedException ignored) {
         } finally {
             try { s.close(); } catch (IOException ignored) {}
         }
     }
 
-    private List<Book> broadcastSearch(String keyword) {
-        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, endpoints.size()));
-        List<CompletableFuture<List<Book>>> futures = new ArrayList<>();
-        for (LibraryEndpoint ep : endpoints) {
-            futures.add(CompletableFuture.supplyAsync(() -> queryBooks(ep, "SEARCH " + keyword), pool));
+    private boolean timed(String line, ClientOutput out) throws IOException {
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            boolean more = dispatch(line, out);
+            failed = out.errored;
+            return more;
+        } finally {
+            int sp = line.indexOf(' ');
+            String verb = sp < 0 ? line : line.substring(0, sp);
+            metrics.command(COMMANDS.contains(verb) ? verb : "OTHER").record(System.nanoTime() - start, failed);
         }
-        List<Book> all = new ArrayList<>();
-        for (CompletableFuture<List<Book>> f : futures) {
+    }
+
+    private boolean dispatch(String line, ClientOutput out) throws IOException {
+        if (line.startsWith("SEARCH ") || line.equals("LIST") || line.startsWith("LIST ")) {
+            if (coalesce) {
+                coalesced(line, out);
+            } else {
+                read(line, out, deadline());
+            }
+        } else if (line.startsWith("LEASE-BATCH ") || line.startsWith("RETURN-BATCH ")) {
+            int sp = line.indexOf(' ');
+            String rest = line.substring(sp + 1).trim();
+            List<String> lines;
             try {
-                all.addAll(f.get(2, TimeUnit.SECONDS));
-            } catch (Exception ignored) {
+                lines = batch(line.substring(0, sp), rest.isEmpty() ? new String[0] : rest.split("\\s+"));
+            } catch (RejectedExecutionException e) {
+                out.line("ERROR Busy");
+                return true;
             }
+            lines.add("END");
+            out.lines(lines);
+        } else if (line.startsWith("LEASE ") || line.startsWith("RETURN ")) {
+            String id = line.substring(line.indexOf(' ') + 1).trim();
+            String key = route(id);
+            if (key == null) {
+                out.line("ERROR UnknownServer");
+            } else {
+                String resp = forward(primary(key), line);
+                if (resp.equals("OK")) {
+                    writes.incrementAndGet();
+                    cache.invalidateBook(id);
+                    if (replica != null) replica.setAvailable(key, id, line.startsWith("RETURN "));
+                }
+                out.line(resp);
+            }
+        } else if (line.equals("STATS")) {
+            List<String> lines;
+            try {
+                lines = new ArrayList<>(stats());
+            } catch (RejectedExecutionException e) {
+                out.line("ERROR Busy");
+                return true;
+            }
+            lines.add("END");
+            out.lines(lines);
+        } else if (line.equals("SERVERS")) {
+            List<String> lines = new ArrayList<>();
+            for (LibraryEndpoint ep : endpoints) {
+                lines.add("SERVER " + ep.key() + " " + ep.host + ":" + ep.port);
+            }
+            lines.add("END");
+            out.lines(lines);
+        } else if (line.equals("CACHESTATS")) {
+            List<String> lines = new ArrayList<>();
+            for (Map.Entry<String, Long> e : cache.metrics().entrySet()) {
+                lines.add("CACHE " + e.getKey() + " " + e.getValue());
+            }
+            lines.add("END");
+            out.lines(lines);
+        } else if (line.equals("METRICS") || line.equals("METRICS PROMETHEUS")) {
+            List<String> lines = line.equals("METRICS") ? metrics.lines() : metrics.prometheus();
+            lines.add("END");
+            out.lines(lines);
+        } else if (line.equals("QUIT")) {
+            return false;
+        } else {
+            out.line("ERROR UnknownCommand");
         }
-        pool.shutdownNow();
-        return all;
+        return true;
     }
 
-    private List<Book> broadcastList() {
-        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, endpoints.size()));
-        List<CompletableFuture<List<Book>>> futures = new ArrayList<>();
-        for (LibraryEndpoint ep : endpoints) {
-            futures.add(CompletableFuture.supplyAsync(() -> queryBooks(ep, "LIST"), pool));
+    private void read(String line, ClientOutput out, long deadline) throws IOException {
+        try {
+            boolean search = line.startsWith("SEARCH ");
+            PageRequest page = PageRequest.parse(line.substring(search ? 7 : 4), search);
+            if (page == null || page.ranked && RankedIndex.terms(page.rest).isEmpty()) {
+                out.line("ERROR BadRequest");
+            } else if (search) {
+                if (page.ranked) {
+                    ranked(page, out, deadline);
+                } else if (page.paged()) {
+                    page("SEARCH " + page.libraryArgs() + " " + page.rest, page.rest, page, out, deadline);
+                } else {
+                    search(page.rest, new BookStream(out), deadline);
+                }
+            } else {
+                if (page.paged()) {
+                    page("LIST " + page.libraryArgs(), null, page, out, deadline);
+                } else {
+                    BookStream stream = new BookStream(out);
+                    broadcast("LIST", null, stream, 0, deadline);
+                    stream.end();
+                }
+            }
+        } catch (RejectedExecutionException e) {
+            out.line("ERROR Busy");
         }
-        List<Book> all = new ArrayList<>();
-        for (CompletableFuture<List<Book>> f : futures) {
+    }
+
+    private void coalesced(String line, ClientOutput out) throws IOException {
+        long deadline = deadline();
+        boolean search = line.startsWith("SEARCH ");
+        PageRequest page = PageRequest.parse(line.substring(search ? 7 : 4), search);
+        if (page == null || search && (page.paged() || page.ranked)) {
+            read(line, out, deadline);
+            return;
+        }
+        String key = writes.get() + " " + (search ? "SEARCH " : "LIST ") + page.limit + " " + page.offset + " " + page.after
+                + " " + SearchCache.normalize(page.rest);
+        Flight flight = new Flight();
+        Flight leader = flights.putIfAbsent(key, flight);
+        if (leader == null) {
+            metrics.increment("coalesce_leaders");
+            out.flight = flight;
+            boolean completed = false;
             try {
-                all.addAll(f.get(2, TimeUnit.SECONDS));
-            } catch (Exception ignored) {
+                read(line, out, deadline);
+                completed = true;
+            } finally {
+                flights.remove(key, flight);
+                flight.finish(!completed || out.errored);
+            }
+            return;
+        }
+        List<String> lines = leader.await(remainingMillis(deadline));
+        if (lines == null) {
+            metrics.increment("coalesce_fallbacks");
+            if (remainingMillis(deadline) == 0) {
+                out.line("ERROR DeadlineExceeded");
+            } else {
+                read(line, out, deadline);
+            }
+            return;
+        }
+        metrics.increment("coalesce_followers");
+        if (search) {
+            localStats.recordKeyword(page.rest.toLowerCase(), replicas.size());
+            for (String l : lines) {
+                if (l.startsWith("BOOK ")) localStats.recordBook(l.substring(5, l.indexOf('|')));
+            }
+        }
+        out.lines(lines);
+    }
+
+    private void search(String keyword, BookStream out, long deadline) throws IOException {
+        if (!cache.enabled()) {
+            broadcast("SEARCH " + keyword, keyword, out, 0, deadline);
+            out.end();
+            return;
+        }
+        String key = SearchCache.normalize(keyword);
+        SearchCache.Entry hit = cache.get(key);
+        if (hit != null) {
+            localStats.recordKeyword(key, hit.sources);
+            for (Book b : hit.books) localStats.recordBook(b.getId());
+            out.write(hit.books);
+            out.end();
+            return;
+        }
+        long generation = cache.generation();
+        Gathered result = broadcast("SEARCH " + keyword, keyword, out, CACHE_MAX_BOOKS, deadline);
+        out.end();
+        if (result.responded == replicas.size() && !result.truncated) {
+            cache.put(key, result.books, result.responded, generation);
+        }
+    }
+
+    private Gathered broadcast(String cmd, String keyword, BookStream out, int collectLimit, long deadline) throws IOException {
+        Gathered gathered = new Gathered(collectLimit);
+        List<Callable<Boolean>> tasks = new ArrayList<>();
+        for (Map.Entry<String, List<LibraryEndpoint>> e : replicas.entrySet()) {
+            List<Book> local = local(e.getKey(), keyword);
+            if (local != null) {
+                for (int i = 0; i < local.size(); i += STREAM_CHUNK) {
+                    out.write(local.subList(i, Math.min(local.size(), i + STREAM_CHUNK)));
+                }
+                int n = Math.min(collectLimit, local.size());
+                gathered.collect(new ArrayList<>(local.subList(0, n)), n < local.size() && collectLimit > 0);
+                gathered.responded++;
+                continue;
+            }
+            if (keyword != null && pruned(e.getKey(), keyword)) {
+                gathered.responded++;
+                continue;
+            }
+            List<LibraryEndpoint> group = e.getValue();
+            tasks.add(() -> replicated(group, deadline, (ep, race) -> {
+                streamBooks(ep, cmd, out, gathered, race);
+                return Boolean.TRUE;
+            }));
+        }
+        for (Boolean ok : fanOut.invokeAll(tasks, remainingMillis(deadline))) {
+            if (ok != null) gathered.responded++;
+        }
+        return gathered;
+    }
+
+    private void page(String cmd, String keyword, PageRequest page, ClientOutput out, long deadline) throws IOException {
+        List<List<Book>> runs = new ArrayList<>();
+        List<Callable<List<Book>>> tasks = new ArrayList<>();
+        for (Map.Entry<String, List<LibraryEndpoint>> e : replicas.entrySet()) {
+            List<Book> local = local(e.getKey(), keyword);
+            if (local != null) {
+                runs.add(page.top(local, page.window(), b -> true));
+                continue;
+            }
+            if (keyword != null && pruned(e.getKey(), keyword)) continue;
+            List<LibraryEndpoint> group = e.getValue();
+            tasks.add(() -> replicated(group, deadline, (ep, race) -> queryBooks(ep, cmd, race)));
+        }
+        if (!tasks.isEmpty()) runs.addAll(fanOut.invokeAll(tasks, remainingMillis(deadline)));
+        List<Book> books = page.merge(runs);
+        List<String> lines = new ArrayList<>(books.size() + 2);
+        for (Book b : books) lines.add(Book.toProtocolLine(b));
+        if (books.size() == page.limit) {
+            lines.add("CURSOR " + books.get(books.size() - 1).getId());
+        }
+        lines.add("END");
+        out.lines(lines);
+    }
+
+    private void ranked(PageRequest page, ClientOutput out, long deadline) throws IOException {
+        String cmd = "SEARCH " + page.libraryArgs() + " " + page.rest;
+        List<String> terms = RankedIndex.terms(page.rest);
+        List<Callable<List<String>>> tasks = new ArrayList<>();
+        for (Map.Entry<String, List<LibraryEndpoint>> e : replicas.entrySet()) {
+            GramFilter filter = summaries.get(e.getKey());
+            if (filter != null && !filter.mightMatchAny(terms)) {
+                metrics.increment("summary_pruned");
+                localStats.recordKeyword(page.rest.toLowerCase(), 1);
+                continue;
+            }
+            List<LibraryEndpoint> group = e.getValue();
+            tasks.add(() -> replicated(group, deadline, (ep, race) -> queryLines(ep, cmd, race)));
+        }
+        List<ScoredLine> hits = new ArrayList<>();
+        if (!tasks.isEmpty()) {
+            for (List<String> run : fanOut.invokeAll(tasks, remainingMillis(deadline))) {
+                if (run == null) continue;
+                for (String l : run) {
+                    if (l.startsWith("BOOK ")) hits.add(new ScoredLine(l));
+                }
+            }
+        }
+        hits.sort(ScoredLine.ORDER);
+        int from = Math.min(page.offset, hits.size());
+        int to = page.paged() ? Math.min(hits.size(), from + page.limit) : hits.size();
+        List<String> lines = new ArrayList<>(to - from + 1);
+        for (ScoredLine h : hits.subList(from, to)) lines.add(h.line);
+        lines.add("END");
+        out.lines(lines);
+    }
+
+    private List<Book> local(String serverId, String keyword) {
+        if (replica == null) return null;
+        List<Book> books = keyword == null ? replica.list(serverId) : replica.search(serverId, keyword);
+        if (books == null) {
+            metrics.increment("replica_fallbacks");
+            return null;
+        }
+        metrics.increment("replica_local_reads");
+        if (keyword != null) {
+            localStats.recordKeyword(keyword.toLowerCase(), 1);
+            for (Book b : books) localStats.recordBook(b.getId());
+        }
+        return books;
+    }
+
+    private boolean pruned(String serverId, String keyword) {
+        GramFilter filter = summaries.get(serverId);
+        if (filter == null || filter.mightMatch(keyword)) return false;
+        metrics.increment("summary_pruned");
+        localStats.recordKeyword(keyword.toLowerCase(), 1);
+        return true;
+    }
+
+    private void refreshSummary(String serverId) {
+        try {
+            pools.get(primary(serverId)).execute(c -> {
+                String known = summaryVersions.get(serverId);
+                c.send(known == null ? "SUMMARY" : "SUMMARY " + known);
+                String ln = c.readLine();
+                String[] h = ln.split(" ");
+                if (h[0].equals("UNCHANGED")) {
+                    while (!"END".equals(ln)) ln = c.readLine();
+                    return null;
+                }
+                if (h.length != 4 || !h[0].equals("SUMMARY")) throw new IOException("SummaryUnsupported " + ln);
+                List<String> chunks = new ArrayList<>();
+                for (ln = c.readLine(); !"END".equals(ln); ln = c.readLine()) {
+                    if (ln.startsWith("BITS ")) chunks.add(ln.substring(5));
+                }
+                summaries.put(serverId, GramFilter.decode(Integer.parseInt(h[2]), Integer.parseInt(h[3]), chunks));
+                summaryVersions.put(serverId, h[1]);
+                return null;
+            });
+        } catch (IOException | RuntimeException e) {
+            summaries.remove(serverId);
+            summaryVersions.remove(serverId);
+            metrics.increment("summary_refresh_failures");
+        }
+    }
+
+    private void syncReplica(String serverId) {
+        long startedAt = System.currentTimeMillis();
+        try {
+            pools.get(primary(serverId)).execute(c -> {
+                String position = replica.position(serverId);
+                boolean snapshot = position == null;
+                c.send(snapshot ? "SNAPSHOT" : "CHANGES " + position);
+                String ln = c.readLine();
+                if (!snapshot && ln.startsWith("ERROR ")) {
+                    snapshot = true;
+                    c.send("SNAPSHOT");
+                    ln = c.readLine();
+                }
+                String[] v = ln.split(" ");
+                if (v.length != 3 || !v[0].equals("VERSION")) throw new IOException("FeedUnsupported " + ln);
+                List<Book> entries = new ArrayList<>();
+                for (ln = c.readLine(); !"END".equals(ln); ln = c.readLine()) {
+                    if (ln.startsWith("ENTRY ")) entries.add(Book.fromStorageLine(ln.substring(6)));
+                }
+                if (snapshot) {
+                    replica.load(serverId, Long.parseLong(v[1]), Long.parseLong(v[2]), entries, startedAt);
+                } else {
+                    replica.apply(serverId, Long.parseLong(v[2]), entries, startedAt);
+                }
+                return null;
+            });
+        } catch (IOException | RuntimeException e) {
+            metrics.increment("replica_sync_failures");
+        }
+    }
+
+    private <T> T exchange(LibraryEndpoint ep, Race race, LibraryConnectionPool.Exchange<T> exchange) throws IOException {
+        return pools.get(ep).execute(c -> {
+            race.enter(ep, c);
+            try {
+                return exchange.run(c);
+            } finally {
+                race.leave(ep);
+            }
+        });
+    }
+
+    private List<Book> queryBooks(LibraryEndpoint ep, String cmd, Race race) throws IOException {
+        return exchange(ep, race, c -> {
+            List<Book> list = new ArrayList<>();
+            c.send(cmd);
+            WireFormat.Reply reply;
+            while (!(reply = c.readReply()).isEnd()) {
+                if (reply.book != null) list.add(reply.book);
+            }
+            return list;
+        });
+    }
+
+    private List<String> queryLines(LibraryEndpoint ep, String cmd, Race race) throws IOException {
+        return exchange(ep, race, c -> {
+            List<String> lines = new ArrayList<>();
+            c.send(cmd);
+            WireFormat.Reply reply;
+            while (!(reply = c.readReply()).isEnd()) lines.add(reply.text());
+            return lines;
+        });
+    }
+
+    private void streamBooks(LibraryEndpoint ep, String cmd, BookStream out, Gathered gathered, Race race)
+            throws IOException {
+        exchange(ep, race, c -> {
+            List<Book> chunk = new ArrayList<>();
+            List<Book> collected = new ArrayList<>();
+            boolean truncated = false;
+            c.send(cmd);
+            WireFormat.Reply reply;
+            while (!(reply = c.readReply()).isEnd()) {
+                if (reply.book == null) continue;
+                Book b = reply.book;
+                chunk.add(b);
+                if (collected.size() < gathered.limit) {
+                    collected.add(b);
+                } else if (gathered.limit > 0) {
+                    truncated = true;
+                }
+                if (chunk.size() == STREAM_CHUNK) {
+                    if (race.claim(ep)) out.write(chunk);
+                    chunk.clear();
+                }
+            }
+            if (race.claim(ep)) {
+                if (!chunk.isEmpty()) out.write(chunk);
+                gathered.collect(collected, truncated);
+            }
+            return null;
+        });
+    }
+
+    private List<String> stats() {
+        StatsSnapshot snapshot = statsSnapshot;
+        if (snapshot != null && System.currentTimeMillis() - snapshot.takenAt <= statsRefreshMillis) {
+            return snapshot.lines;
+        }
+        synchronized (statsLock) {
+            snapshot = statsSnapshot;
+            if (snapshot != null && System.currentTimeMillis() - snapshot.takenAt <= statsRefreshMillis) {
+                return snapshot.lines;
+            }
+            long takenAt = System.currentTimeMillis();
+            List<String> lines = computeStats();
+            statsSnapshot = new StatsSnapshot(lines, takenAt);
+            return lines;
+        }
+    }
+
+    private List<String> computeStats() {
+        StatsAggregator.Partial local = new StatsAggregator.Partial();
+        local.keywords.putAll(localStats.keywordSnapshot());
+        local.books.putAll(localStats.bookSnapshot());
+        int k = STATS_TOP * 2;
+        long deadline = deadline();
+        while (true) {
+            int depth = k;
+            List<Callable<StatsAggregator.Partial>> tasks = new ArrayList<>();
+            for (List<LibraryEndpoint> group : replicas.values()) {
+                tasks.add(() -> replicated(group, deadline, (ep, race) -> queryStats(ep, depth, race)));
+            }
+            List<StatsAggregator.Partial> partials = new ArrayList<>();
+            for (StatsAggregator.Partial p : fanOut.invokeAll(tasks, remainingMillis(deadline))) {
+                if (p != null) partials.add(p);
             }
+            partials.add(local);
+            List<Map.Entry<String, Long>> kw = StatsAggregator.mergeKeywords(partials, STATS_TOP);
+            List<Map.Entry<String, Long>> bc = StatsAggregator.mergeBooks(partials, STATS_TOP);
+            if (kw != null && bc != null) {
+                List<String> lines = new ArrayList<>();
+                for (Map.Entry<String, Long> e : kw) lines.add("KEYWORD " + e.getKey() + " " + e.getValue());
+                for (Map.Entry<String, Long> e : bc) lines.add("BOOKSEARCH " + e.getKey() + " " + e.getValue());
+                return lines;
+            }
+            k *= 4;
         }
-        pool.shutdownNow();
-        return all;
     }
 
-    private List<Book> queryBooks(LibraryEndpoint ep, String cmd) {
-        List<Book> list = new ArrayList<>();
+    private StatsAggregator.Partial queryStats(LibraryEndpoint ep, int k, Race race) throws IOException {
+        return exchange(ep, race, c -> {
+            StatsAggregator.Partial partial = new StatsAggregator.Partial();
+            c.send(k > StatsAggregator.MAX_TOP ? "STATS" : "STATS TOP=" + k);
+            String ln = c.readLine();
+            if (ln.startsWith("ERROR ")) {
+                c.send("STATS");
+                ln = c.readLine();
+            }
+            for (; !"END".equals(ln); ln = c.readLine()) {
+                if (ln.startsWith("KEYWORD ")) {
+                    String[] p = ln.substring(8).split("\\|");
+                    if (p.length == 2) partial.keywords.merge(p[0], Long.parseLong(p[1]), Long::sum);
+                } else if (ln.startsWith("BOOKSEARCH ")) {
+                    String[] p = ln.substring(11).split("\\|");
+                    if (p.length == 2) partial.books.merge(p[0], Long.parseLong(p[1]), Long::sum);
+                } else if (ln.startsWith("THRESHOLD KEYWORD ")) {
+                    partial.keywordThreshold = Long.parseLong(ln.substring(18));
+                } else if (ln.startsWith("THRESHOLD BOOKSEARCH ")) {
+                    partial.bookThreshold = Long.parseLong(ln.substring(21));
+                }
+            }
+            return partial;
+        });
+    }
+
+    private void refreshStats() {
         try {
-            Socket s = new Socket();
-            s.connect(new InetSocketAddress(ep.host, ep.port), 1000);
-            s.setSoTimeout(1500);
-            BufferedWriter w = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8));
-            BufferedReader r = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
-            w.write(cmd + "\n");
-            w.flush();
-            String line;
-            while ((line = r.readLine()) != null) {
-                if ("END".equals(line)) break;
-                if (line.startsWith("BOOK ")) list.add(Book.fromProtocolLine(line));
+            long takenAt = System.currentTimeMillis();
+            List<String> lines = computeStats();
+            synchronized (statsLock) {
+                statsSnapshot = new StatsSnapshot(lines, takenAt);
             }
-            s.close();
-        } catch (Exception ignored) {
+        } catch (RuntimeException e) {
+            metrics.increment("stats_refresh_failures");
         }
-        return list;
+    }
+
+    private List<String> batch(String verb, String[] ids) {
+        String[] results = new String[ids.length];
+        Map<LibraryEndpoint, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < ids.length; i++) {
+            String key = route(ids[i]);
+            if (key == null) {
+                results[i] = "ERROR UnknownServer";
+            } else {
+                groups.computeIfAbsent(primary(key), k -> new ArrayList<>()).add(i);
+            }
+        }
+        List<List<Integer>> positions = new ArrayList<>();
+        List<Callable<List<String>>> tasks = new ArrayList<>();
+        for (Map.Entry<LibraryEndpoint, List<Integer>> g : groups.entrySet()) {
+            List<String> groupIds = new ArrayList<>();
+            for (int i : g.getValue()) groupIds.add(ids[i]);
+            positions.add(g.getValue());
+            tasks.add(() -> forwardBatch(g.getKey(), verb, groupIds));
+        }
+        List<List<String>> replies = tasks.isEmpty() ? new ArrayList<>() : fanOut.invokeAll(tasks,
+                Math.max(deadlineMillis, LibraryConnectionPool.WRITE_TIMEOUT_MS));
+        for (int g = 0; g < positions.size(); g++) {
+            List<String> reply = replies.get(g);
+            List<Integer> pos = positions.get(g);
+            for (int j = 0; j < pos.size(); j++) {
+                results[pos.get(j)] = reply != null && j < reply.size() ? reply.get(j) : "ERROR Unreachable";
+            }
+        }
+        List<String> lines = new ArrayList<>(ids.length + 1);
+        for (int i = 0; i < ids.length; i++) {
+            if (results[i].equals("OK")) {
+                writes.incrementAndGet();
+                cache.invalidateBook(ids[i]);
+                if (replica != null) replica.setAvailable(route(ids[i]), ids[i], verb.equals("RETURN-BATCH"));
+            }
+            lines.add("ITEM " + ids[i] + " " + results[i]);
+        }
+        return lines;
+    }
+
+    private List<String> forwardBatch(LibraryEndpoint ep, String verb, List<String> ids) throws IOException {
+        return pools.get(ep).executeWrite(c -> {
+            List<String> results = new ArrayList<>(ids.size());
+            c.send(verb + " " + String.join(" ", ids));
+            String ln = c.readLine();
+            if (ln.startsWith("ERROR ")) {
+                String single = verb.substring(0, verb.indexOf('-'));
+                for (String id : ids) {
+                    c.send(single + " " + id);
+                    results.add(c.readLine());
+                }
+                return results;
+            }
+            for (; !"END".equals(ln); ln = c.readLine()) {
+                if (!ln.startsWith("ITEM ")) continue;
+                int sp = ln.indexOf(' ', 5);
+                results.add(sp < 0 ? "ERROR BadReply" : ln.substring(sp + 1));
+            }
+            return results;
+        });
     }
 
     private String serverIdFrom(String id) {
@@ -207,45 +785,333 @@ public class CoordinatorServer {
         return id.substring(0, idx);
     }
 
-    private LibraryEndpoint byServerId(String sid) {
-        for (LibraryEndpoint ep : endpoints) {
-            if (ep.serverId.equals(sid)) return ep;
+    private String route(String bookId) {
+        String sid = serverIdFrom(bookId);
+        HashRing ring = rings.get(sid);
+        String key = ring == null ? sid : sid + "#" + ring.locate(bookId);
+        return replicas.containsKey(key) ? key : null;
+    }
+
+    private LibraryEndpoint primary(String key) {
+        return replicas.get(key).get(0);
+    }
+
+    private List<LibraryEndpoint> balanced(List<LibraryEndpoint> group) {
+        int n = group.size();
+        if (n == 1) return group;
+        int start = Math.floorMod(nextReplica.getAndIncrement(), n);
+        int best = start;
+        for (int i = 1; i < n; i++) {
+            int j = (start + i) % n;
+            if (pools.get(group.get(j)).inUse() < pools.get(group.get(best)).inUse()) best = j;
         }
-        return null;
+        List<LibraryEndpoint> order = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) order.add(group.get((best + i) % n));
+        return order;
+    }
+
+    private long deadline() {
+        return System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+    }
+
+    private static long remainingMillis(long deadline) {
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+    }
+
+    private <T> T replicated(List<LibraryEndpoint> candidates, long deadline, Attempt<T> attempt) throws Exception {
+        List<LibraryEndpoint> group = balanced(candidates);
+        Race race = new Race();
+        Hedge<T> h = hedge && group.size() > 1 ? new Hedge<>(group, attempt, race) : null;
+        if (h == null || !h.launch()) {
+            for (int i = 0; ; i++) {
+                try {
+                    return attempt.run(group.get(i), race);
+                } catch (IOException e) {
+                    if (i + 1 == group.size() || race.winner() != null || System.nanoTime() >= deadline) throw e;
+                    metrics.increment("replica_failovers");
+                }
+            }
+        }
+        while (true) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) throw new TimeoutException("DeadlineExceeded");
+            long wait = h.hasNext() ? Math.min(remaining, hedgeDelay(h.last)) : remaining;
+            try {
+                return h.result.get(wait, TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                if (h.hasNext()) {
+                    metrics.increment("hedged_requests");
+                    h.launch();
+                }
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                throw cause instanceof Exception ? (Exception) cause : e;
+            }
+        }
+    }
+
+    private long hedgeDelay(LibraryEndpoint ep) {
+        return hedgeAfterNanos > 0 ? hedgeAfterNanos : pools.get(ep).typicalLatencyNanos();
     }
 
     private String forward(LibraryEndpoint ep, String cmd) {
         try {
-            Socket s = new Socket();
-            s.connect(new InetSocketAddress(ep.host, ep.port), 1000);
-            s.setSoTimeout(1500);
-            BufferedWriter w = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8));
-            BufferedReader r = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
-            w.write(cmd + "\n");
-            w.flush();
-            String line = r.readLine();
-            s.close();
-            if (line == null) return "ERROR NoResponse";
-            return line;
+            return pools.get(ep).executeWrite(c -> {
+                c.send(cmd);
+                return c.readLine();
+            });
+        } catch (EOFException e) {
+            return "ERROR NoResponse";
         } catch (Exception e) {
             return "ERROR Unreachable";
         }
     }
 
+    private interface Attempt<T> {
+        T run(LibraryEndpoint ep, Race race) throws IOException;
+    }
+
+    private class Race {
+        private final Map<LibraryEndpoint, LibraryConnectionPool.LibraryConnection> running = new HashMap<>();
+        private LibraryEndpoint winner;
+
+        private synchronized LibraryEndpoint winner() {
+            return winner;
+        }
+
+        private synchronized void enter(LibraryEndpoint ep, LibraryConnectionPool.LibraryConnection c) throws IOException {
+            if (winner != null && winner != ep) throw new IOException("HedgeLost");
+            running.put(ep, c);
+        }
+
+        private synchronized void leave(LibraryEndpoint ep) {
+            running.remove(ep);
+        }
+
+        private synchronized boolean claim(LibraryEndpoint ep) {
+            if (winner != null) return winner == ep;
+            winner = ep;
+            for (Map.Entry<LibraryEndpoint, LibraryConnectionPool.LibraryConnection> e : running.entrySet()) {
+                if (e.getKey() == ep) continue;
+                e.getValue().abort();
+                metrics.increment("hedge_cancelled");
+            }
+            return true;
+        }
+    }
+
+    private class Hedge<T> {
+        private final List<LibraryEndpoint> group;
+        private final Attempt<T> attempt;
+        private final Race race;
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+        private final AtomicInteger next = new AtomicInteger();
+        private final AtomicInteger running = new AtomicInteger();
+        private volatile LibraryEndpoint last;
+
+        private Hedge(List<LibraryEndpoint> group, Attempt<T> attempt, Race race) {
+            this.group = group;
+            this.attempt = attempt;
+            this.race = race;
+        }
+
+        private boolean hasNext() {
+            return next.get() < group.size();
+        }
+
+        private boolean launch() {
+            int i = next.getAndIncrement();
+            if (i >= group.size()) return false;
+            LibraryEndpoint ep = group.get(i);
+            last = ep;
+            running.incrementAndGet();
+            try {
+                hedges.execute(() -> run(ep, i));
+            } catch (RejectedExecutionException e) {
+                running.decrementAndGet();
+                return false;
+            }
+            return true;
+        }
+
+        private void run(LibraryEndpoint ep, int index) {
+            try {
+                T value = attempt.run(ep, race);
+                if (race.claim(ep) && result.complete(value) && index > 0) metrics.increment("hedge_wins");
+                running.decrementAndGet();
+            } catch (Exception e) {
+                running.decrementAndGet();
+                LibraryEndpoint winner = race.winner();
+                if (winner == ep) {
+                    result.completeExceptionally(e);
+                } else if (winner != null) {
+                    return;
+                } else if (launch()) {
+                    metrics.increment("replica_failovers");
+                } else if (running.get() == 0) {
+                    result.completeExceptionally(e);
+                }
+            }
+        }
+    }
+
+    private static class Gathered {
+        private final int limit;
+        private final List<Book> books = new ArrayList<>();
+        private boolean truncated;
+        private int responded;
+
+        private Gathered(int limit) {
+            this.limit = limit;
+        }
+
+        private synchronized void collect(List<Book> collected, boolean truncated) {
+            if (books.size() + collected.size() > limit) truncated = true;
+            if (truncated) {
+                this.truncated = true;
+                books.clear();
+            } else if (!this.truncated) {
+                books.addAll(collected);
+            }
+        }
+    }
+
+    private static class ScoredLine {
+        private static final Comparator<ScoredLine> ORDER = Comparator.comparingDouble((ScoredLine h) -> -h.score)
+                .thenComparing(h -> h.id);
+
+        private final String line;
+        private final String id;
+        private final double score;
+
+        private ScoredLine(String line) {
+            this.line = line;
+            int bar = line.indexOf('|');
+            this.id = line.substring(5, bar < 0 ? line.length() : bar);
+            this.score = Book.scoreFromProtocolLine(line);
+        }
+    }
+
+    private static class StatsSnapshot {
+        private final List<String> lines;
+        private final long takenAt;
+
+        private StatsSnapshot(List<String> lines, long takenAt) {
+            this.lines = lines;
+            this.takenAt = takenAt;
+        }
+    }
+
+    private static class Flight {
+        private final CompletableFuture<List<String>> result = new CompletableFuture<>();
+        private final List<String> lines = new ArrayList<>();
+        private boolean overflowed;
+
+        private void record(String line) {
+            if (lines.size() < COALESCE_MAX_LINES) {
+                lines.add(line);
+            } else {
+                overflowed = true;
+            }
+        }
+
+        private void finish(boolean errored) {
+            result.complete(errored || overflowed ? null : lines);
+        }
+
+        private List<String> await(long timeoutMillis) {
+            try {
+                return result.get(timeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ExecutionException | TimeoutException e) {
+                return null;
+            }
+        }
+    }
+
+    private static class ClientOutput {
+        private final BufferedWriter w;
+        private final String tag;
+        private volatile boolean errored;
+        private Flight flight;
+
+        private ClientOutput(BufferedWriter w, String tag) {
+            this.w = w;
+            this.tag = tag;
+        }
+
+        private void line(String line) throws IOException {
+            if (line.startsWith("ERROR ")) errored = true;
+            synchronized (w) {
+                if (flight != null) flight.record(line);
+                w.write(tag);
+                w.write(line);
+                w.write("\n");
+                w.flush();
+            }
+        }
+
+        private void lines(List<String> lines) throws IOException {
+            synchronized (w) {
+                for (String line : lines) {
+                    if (flight != null) flight.record(line);
+                    w.write(tag);
+                    w.write(line);
+                    w.write("\n");
+                }
+                w.flush();
+            }
+        }
+    }
+
+    private static class BookStream {
+        private final ClientOutput out;
+        private boolean closed;
+
+        private BookStream(ClientOutput out) {
+            this.out = out;
+        }
+
+        private synchronized void write(List<Book> books) throws IOException {
+            if (closed) throw new IOException("StreamClosed");
+            List<String> lines = new ArrayList<>(books.size());
+            for (Book b : books) lines.add(Book.toProtocolLine(b));
+            out.lines(lines);
+        }
+
+        private synchronized void end() throws IOException {
+            if (closed) return;
+            closed = true;
+            out.line("END");
+        }
+    }
+
     public static class LibraryEndpoint {
         public final String serverId;
+        public final String shard;
         public final String host;
         public final int port;
         public LibraryEndpoint(String serverId, String host, int port) {
+            this(serverId, "", host, port);
+        }
+
+        public LibraryEndpoint(String serverId, String shard, String host, int port) {
             this.serverId = serverId;
+            this.shard = shard;
             this.host = host;
             this.port = port;
         }
+
+        public String key() {
+            return shard.isEmpty() ? serverId : serverId + "#" + shard;
+        }
     }
 
     public static void main(String[] args) throws Exception {
         if (args.length < 2) {
-            System.out.println("Usage: CoordinatorServer <port> <serverId@host:port>...");
+            System.out.println("Usage: CoordinatorServer <port> <serverId[#shard]@host:port>... " + CoordinatorConfig.USAGE);
             return;
         }
         int port = Integer.parseInt(args[0]);
@@ -254,13 +1120,14 @@ public class CoordinatorServer {
             String a = args[i];
             int at = a.indexOf('@');
             int col = a.lastIndexOf(':');
-            if (at <= 0 || col <= at) continue;
+            if (a.startsWith("--") || at <= 0 || col <= at) continue;
             String sid = a.substring(0, at);
+            int hash = sid.indexOf('#');
             String host = a.substring(at + 1, col);
             int p = Integer.parseInt(a.substring(col + 1));
-            eps.add(new LibraryEndpoint(sid, host, p));
+            eps.add(hash < 0 ? new LibraryEndpoint(sid, host, p) : new LibraryEndpoint(sid.substring(0, hash), sid.substring(hash + 1), host, p));
         }
-        new CoordinatorServer(port, eps).start();
+        new CoordinatorServer(port, eps, CoordinatorConfig.fromArgs(args)).start();
     }
 }
 
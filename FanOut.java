@@ -0,0 +1,98 @@
+package com.sidp.distributed;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+public class FanOut {
+    private final ThreadPoolExecutor executor;
+    private final Semaphore admission;
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+
+    public FanOut(int threads, int queueCapacity) {
+        AtomicInteger counter = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(threads + Math.max(0, queueCapacity)), r -> {
+                    Thread t = new Thread(r, "fanout-" + counter.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        this.executor.allowCoreThreadTimeOut(true);
+        this.admission = new Semaphore(threads + Math.max(0, queueCapacity));
+    }
+
+    public <T> List<T> invokeAll(List<Callable<T>> tasks, long timeoutMillis) {
+        if (!admission.tryAcquire(tasks.size())) {
+            rejected.increment();
+            throw new RejectedExecutionException("FanOut saturated");
+        }
+        List<FutureTask<T>> futures = new ArrayList<>(tasks.size());
+        for (Callable<T> task : tasks) {
+            AtomicBoolean claimed = new AtomicBoolean();
+            FutureTask<T> f = new FutureTask<T>(() -> {
+                if (!claimed.compareAndSet(false, true)) return null;
+                try {
+                    return task.call();
+                } finally {
+                    admission.release();
+                }
+            }) {
+                @Override
+                protected void done() {
+                    if (isCancelled() && claimed.compareAndSet(false, true)) admission.release();
+                }
+            };
+            futures.add(f);
+            try {
+                executor.execute(f);
+            } catch (RejectedExecutionException e) {
+                rejected.increment();
+                f.cancel(false);
+            }
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        List<T> results = new ArrayList<>(tasks.size());
+        for (FutureTask<T> f : futures) {
+            T result = null;
+            try {
+                result = f.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (TimeoutException e) {
+                timedOut.increment();
+            } catch (ExecutionException ignored) {
+            }
+            if (result == null && f.cancel(true)) executor.remove(f);
+            results.add(result);
+        }
+        return results;
+    }
+
+    public int queueSize() {
+        return executor.getQueue().size();
+    }
+
+    public int activeCount() {
+        return executor.getActiveCount();
+    }
+
+    public long rejectedCount() {
+        return rejected.sum();
+    }
+
+    public long timedOutCount() {
+        return timedOut.sum();
+    }
+}
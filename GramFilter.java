@@ -0,0 +1,103 @@
+package com.sidp.distributed;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.List;
+
+public class GramFilter {
+    private static final int GRAM = 3;
+    private static final int BITS_PER_GRAM = 10;
+    private static final int HASHES = 7;
+    private static final int WORDS_PER_LINE = 6144;
+
+    private final long[] words;
+    private final int hashes;
+
+    private GramFilter(long[] words, int hashes) {
+        this.words = words;
+        this.hashes = hashes;
+    }
+
+    public static GramFilter of(Collection<String> grams) {
+        long bits = Math.max(64, (long) grams.size() * BITS_PER_GRAM);
+        GramFilter f = new GramFilter(new long[(int) ((bits + 63) / 64)], HASHES);
+        for (String g : grams) f.add(g);
+        return f;
+    }
+
+    public static GramFilter decode(int hashes, int wordCount, List<String> chunks) {
+        ByteBuffer buf = ByteBuffer.allocate(wordCount * 8);
+        for (String chunk : chunks) buf.put(Base64.getDecoder().decode(chunk));
+        buf.flip();
+        long[] words = new long[wordCount];
+        buf.asLongBuffer().get(words);
+        return new GramFilter(words, hashes);
+    }
+
+    public int hashes() {
+        return hashes;
+    }
+
+    public int wordCount() {
+        return words.length;
+    }
+
+    public List<String> encode() {
+        List<String> chunks = new ArrayList<>();
+        for (int from = 0; from < words.length; from += WORDS_PER_LINE) {
+            int n = Math.min(WORDS_PER_LINE, words.length - from);
+            ByteBuffer buf = ByteBuffer.allocate(n * 8);
+            buf.asLongBuffer().put(words, from, n);
+            chunks.add(Base64.getEncoder().encodeToString(buf.array()));
+        }
+        return chunks;
+    }
+
+    public boolean mightMatch(String keyword) {
+        String q = keyword.toLowerCase();
+        if (q.length() < GRAM) return true;
+        for (int i = 0; i + GRAM <= q.length(); i++) {
+            if (!mightContain(q.substring(i, i + GRAM))) return false;
+        }
+        return true;
+    }
+
+    public boolean mightMatchAny(Collection<String> keywords) {
+        for (String k : keywords) {
+            if (mightMatch(k)) return true;
+        }
+        return false;
+    }
+
+    private void add(String gram) {
+        int h1 = gram.hashCode();
+        int h2 = mix(h1);
+        long m = words.length * 64L;
+        for (int i = 0; i < hashes; i++) {
+            long bit = Math.floorMod(h1 + (long) i * h2, m);
+            words[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    private boolean mightContain(String gram) {
+        int h1 = gram.hashCode();
+        int h2 = mix(h1);
+        long m = words.length * 64L;
+        for (int i = 0; i < hashes; i++) {
+            long bit = Math.floorMod(h1 + (long) i * h2, m);
+            if ((words[(int) (bit >>> 6)] & (1L << bit)) == 0) return false;
+        }
+        return true;
+    }
+
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h | 1;
+    }
+}
@@ -0,0 +1,54 @@
+package com.sidp.distributed;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+public class HashRing {
+    private static final int VIRTUAL_NODES = 128;
+
+    private final int[] points;
+    private final String[] owners;
+
+    public HashRing(Collection<String> members) {
+        if (members.isEmpty()) throw new IllegalArgumentException("Empty ring");
+        long[] entries = new long[members.size() * VIRTUAL_NODES];
+        String[] names = members.toArray(new String[0]);
+        Arrays.sort(names);
+        int n = 0;
+        for (int m = 0; m < names.length; m++) {
+            for (int v = 0; v < VIRTUAL_NODES; v++) {
+                entries[n++] = ((long) hash(names[m] + "/" + v) << 32) | m;
+            }
+        }
+        Arrays.sort(entries);
+        this.points = new int[n];
+        this.owners = new String[n];
+        for (int i = 0; i < n; i++) {
+            points[i] = (int) (entries[i] >> 32);
+            owners[i] = names[(int) entries[i]];
+        }
+    }
+
+    public static HashRing ofPartitions(int count) {
+        String[] names = new String[count];
+        for (int i = 0; i < count; i++) names[i] = String.valueOf(i);
+        return new HashRing(Arrays.asList(names));
+    }
+
+    public String locate(String key) {
+        int h = hash(key);
+        int i = Arrays.binarySearch(points, h);
+        if (i < 0) i = -i - 1;
+        return owners[i == points.length ? 0 : i];
+    }
+
+    private static int hash(String s) {
+        int h = s.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
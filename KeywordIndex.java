@@ -0,0 +1,168 @@
+package com.sidp.distributed;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public class KeywordIndex {
+    private static final int GRAM = 3;
+
+    private List<Book> books = new ArrayList<>();
+    private boolean shared;
+    private final Map<String, Postings> postings = new HashMap<>();
+    private final Map<String, Integer> ordinals = new HashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    public void rebuild(Collection<Book> all) {
+        lock.writeLock().lock();
+        try {
+            books = new ArrayList<>();
+            shared = false;
+            postings.clear();
+            ordinals.clear();
+            for (Book b : all) addLocked(b);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void rebuild(CompactCatalog catalog) {
+        lock.writeLock().lock();
+        try {
+            books = catalog.rows();
+            shared = true;
+            postings.clear();
+            ordinals.clear();
+            for (int row = 0; row < books.size(); row++) indexLocked(books.get(row), row);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void add(Book b) {
+        lock.writeLock().lock();
+        try {
+            detachLocked();
+            removeLocked(b.getId());
+            addLocked(b);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public void remove(String id) {
+        lock.writeLock().lock();
+        try {
+            detachLocked();
+            removeLocked(id);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public GramFilter summary() {
+        lock.readLock().lock();
+        try {
+            return GramFilter.of(postings.keySet());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public List<Book> search(String keyword) {
+        String q = keyword.toLowerCase();
+        lock.readLock().lock();
+        try {
+            List<Book> result = new ArrayList<>();
+            if (q.length() < GRAM) {
+                for (Book b : books) {
+                    if (b != null && b.matchesLowerKeyword(q)) result.add(b);
+                }
+                return result;
+            }
+            Set<String> grams = new HashSet<>();
+            addGrams(q, grams);
+            Postings[] lists = new Postings[grams.size()];
+            int n = 0;
+            for (String g : grams) {
+                Postings p = postings.get(g);
+                if (p == null) return result;
+                lists[n++] = p;
+            }
+            Arrays.sort(lists, (a, b) -> Integer.compare(a.size, b.size));
+            int[] candidates = Arrays.copyOf(lists[0].ids, lists[0].size);
+            int count = candidates.length;
+            for (int i = 1; i < lists.length && count > 0; i++) {
+                count = intersect(candidates, count, lists[i]);
+            }
+            for (int i = 0; i < count; i++) {
+                Book b = books.get(candidates[i]);
+                if (b != null && b.matchesLowerKeyword(q)) result.add(b);
+            }
+            return result;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void detachLocked() {
+        if (!shared) return;
+        books = new ArrayList<>(books);
+        shared = false;
+        for (int i = 0; i < books.size(); i++) ordinals.put(books.get(i).getId(), i);
+    }
+
+    private void addLocked(Book b) {
+        int ordinal = books.size();
+        books.add(b);
+        ordinals.put(b.getId(), ordinal);
+        indexLocked(b, ordinal);
+    }
+
+    private void indexLocked(Book b, int ordinal) {
+        Set<String> grams = new HashSet<>();
+        for (String field : b.searchFields()) addGrams(field, grams);
+        for (String g : grams) {
+            postings.computeIfAbsent(g, k -> new Postings()).add(ordinal);
+        }
+    }
+
+    private void removeLocked(String id) {
+        Integer ordinal = ordinals.remove(id);
+        if (ordinal != null) books.set(ordinal, null);
+    }
+
+    private static void addGrams(String s, Set<String> out) {
+        for (int i = 0; i + GRAM <= s.length(); i++) {
+            out.add(s.substring(i, i + GRAM));
+        }
+    }
+
+    private static int intersect(int[] candidates, int count, Postings p) {
+        int out = 0;
+        int j = 0;
+        for (int i = 0; i < count && j < p.size; i++) {
+            int c = candidates[i];
+            while (j < p.size && p.ids[j] < c) j++;
+            if (j < p.size && p.ids[j] == c) candidates[out++] = c;
+        }
+        return out;
+    }
+
+    private static class Postings {
+        private int[] ids = new int[4];
+        private int size;
+
+        private void add(int ordinal) {
+            if (size == ids.length) ids = Arrays.copyOf(ids, size * 2);
+            ids[size++] = ordinal;
+        }
+    }
+}
@@ -0,0 +1,280 @@
+package com.sidp.distributed;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+public class LibraryConnectionPool {
+    private static final int CONNECT_TIMEOUT_MS = 1000;
+    private static final int READ_TIMEOUT_MS = 1500;
+    public static final int WRITE_TIMEOUT_MS = 1500;
+    private static final long VALIDATE_AFTER_MS = 5000;
+    private static final long MAX_IDLE_MS = 60000;
+    private static final int MIN_TIMEOUT_MS = 100;
+    private static final int TIMEOUT_MULTIPLIER = 4;
+    private static final long WINDOW_NANOS = TimeUnit.SECONDS.toNanos(5);
+    private static final int WINDOW_MIN_SAMPLES = 50;
+
+    private final CoordinatorServer.LibraryEndpoint endpoint;
+    private final int maxConnections;
+    private final Semaphore permits;
+    private final ServerMetrics.Timer metrics = new ServerMetrics.Timer();
+    private final boolean binary;
+    private final Deque<LibraryConnection> idle = new ArrayDeque<>();
+    private volatile LatencyHistogram window = new LatencyHistogram();
+    private volatile long windowStart = System.nanoTime();
+    private volatile boolean tuned;
+    private volatile int readTimeoutMs = READ_TIMEOUT_MS;
+    private volatile long typicalNanos = TimeUnit.MILLISECONDS.toNanos(READ_TIMEOUT_MS) / TIMEOUT_MULTIPLIER;
+
+    public LibraryConnectionPool(CoordinatorServer.LibraryEndpoint endpoint, int maxConnections, boolean binary) {
+        this.endpoint = endpoint;
+        this.maxConnections = Math.max(1, maxConnections);
+        this.permits = new Semaphore(this.maxConnections);
+        this.binary = binary;
+    }
+
+    public interface Exchange<T> {
+        T run(LibraryConnection c) throws IOException;
+    }
+
+    public ServerMetrics.Timer metrics() {
+        return metrics;
+    }
+
+    public int readTimeoutMillis() {
+        return readTimeoutMs;
+    }
+
+    public long typicalLatencyNanos() {
+        return typicalNanos;
+    }
+
+    public int inUse() {
+        return maxConnections - permits.availablePermits();
+    }
+
+    public int idleCount() {
+        synchronized (idle) {
+            return idle.size();
+        }
+    }
+
+    public <T> T execute(Exchange<T> exchange) throws IOException {
+        return execute(exchange, false);
+    }
+
+    public <T> T executeWrite(Exchange<T> exchange) throws IOException {
+        return execute(exchange, true);
+    }
+
+    private <T> T execute(Exchange<T> exchange, boolean write) throws IOException {
+        long start = System.nanoTime();
+        try {
+            T result = executePooled(exchange, write);
+            long elapsed = System.nanoTime() - start;
+            metrics.record(elapsed, false);
+            if (!write) observe(elapsed);
+            return result;
+        } catch (SocketTimeoutException e) {
+            long elapsed = System.nanoTime() - start;
+            metrics.timeout(elapsed);
+            if (!write) observe(elapsed);
+            throw e;
+        } catch (IOException | RuntimeException e) {
+            metrics.record(System.nanoTime() - start, true);
+            throw e;
+        }
+    }
+
+    private void observe(long nanos) {
+        LatencyHistogram w = window;
+        w.record(nanos);
+        long now = System.nanoTime();
+        if (w.count() >= WINDOW_MIN_SAMPLES && (!tuned || now - windowStart >= WINDOW_NANOS)) retune(w, now);
+    }
+
+    private synchronized void retune(LatencyHistogram w, long now) {
+        if (window != w) return;
+        long p99 = TimeUnit.NANOSECONDS.toMillis(w.percentile(0.99));
+        readTimeoutMs = (int) Math.max(MIN_TIMEOUT_MS, Math.min(READ_TIMEOUT_MS, p99 * TIMEOUT_MULTIPLIER));
+        typicalNanos = w.percentile(0.95);
+        window = new LatencyHistogram();
+        windowStart = now;
+        tuned = true;
+    }
+
+    private <T> T executePooled(Exchange<T> exchange, boolean write) throws IOException {
+        try {
+            if (!permits.tryAcquire(CONNECT_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                throw new IOException("PoolExhausted " + endpoint.serverId);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted");
+        }
+        try {
+            LibraryConnection c = borrow();
+            while (true) {
+                c.socket.setSoTimeout(write ? WRITE_TIMEOUT_MS : readTimeoutMs);
+                try {
+                    T result = exchange.run(c);
+                    release(c);
+                    return result;
+                } catch (IOException e) {
+                    c.close();
+                    if (write || c.aborted || !c.reused || c.received || e instanceof SocketTimeoutException) throw e;
+                    c = connect();
+                } catch (RuntimeException e) {
+                    c.close();
+                    throw e;
+                }
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    public void close() {
+        synchronized (idle) {
+            for (LibraryConnection c : idle) c.close();
+            idle.clear();
+        }
+    }
+
+    private LibraryConnection borrow() throws IOException {
+        while (true) {
+            LibraryConnection c;
+            synchronized (idle) {
+                c = idle.pollFirst();
+            }
+            if (c == null) return connect();
+            long idleFor = System.currentTimeMillis() - c.lastUsed;
+            if (idleFor > MAX_IDLE_MS) {
+                c.close();
+            } else if (idleFor > VALIDATE_AFTER_MS && !c.ping()) {
+                c.close();
+            } else {
+                c.reused = true;
+                c.received = false;
+                return c;
+            }
+        }
+    }
+
+    private void release(LibraryConnection c) {
+        c.lastUsed = System.currentTimeMillis();
+        synchronized (idle) {
+            idle.addFirst(c);
+        }
+    }
+
+    private LibraryConnection connect() throws IOException {
+        Socket s = new Socket();
+        try {
+            s.connect(new InetSocketAddress(endpoint.host, endpoint.port), Math.min(CONNECT_TIMEOUT_MS, readTimeoutMs));
+            s.setSoTimeout(readTimeoutMs);
+            s.setTcpNoDelay(true);
+            LibraryConnection c = new LibraryConnection(s);
+            if (binary) c.negotiate();
+            return c;
+        } catch (IOException e) {
+            try { s.close(); } catch (IOException ignored) {}
+            throw e;
+        }
+    }
+
+    public static class LibraryConnection {
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+        private final BufferedWriter writer;
+        private BufferedReader reader;
+        private WireFormat.ReplyReader frames;
+        private long lastUsed;
+        private boolean reused;
+        private boolean received;
+        private volatile boolean aborted;
+
+        private LibraryConnection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream());
+            this.out = new BufferedOutputStream(socket.getOutputStream());
+            this.writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        }
+
+        private void negotiate() throws IOException {
+            send(WireFormat.HELLO);
+            String resp = WireFormat.readLine(in);
+            if (resp == null) throw new EOFException("ConnectionClosed");
+            if (WireFormat.HELLO_OK.equals(resp)) frames = new WireFormat.ReplyReader(in);
+        }
+
+        public void send(String cmd) throws IOException {
+            if (frames != null) {
+                WireFormat.writeCommand(out, cmd);
+                return;
+            }
+            writer.write(cmd);
+            writer.write("\n");
+            writer.flush();
+        }
+
+        public WireFormat.Reply readReply() throws IOException {
+            WireFormat.Reply reply;
+            if (frames != null) {
+                reply = frames.read();
+            } else {
+                if (reader == null) reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+                String line = reader.readLine();
+                if (line == null) throw new EOFException("ConnectionClosed");
+                if (line.equals("END")) {
+                    reply = WireFormat.Reply.END;
+                } else if (line.startsWith("BOOK ")) {
+                    reply = new WireFormat.Reply(line, Book.fromProtocolLine(line));
+                } else {
+                    reply = new WireFormat.Reply(line, null);
+                }
+            }
+            received = true;
+            return reply;
+        }
+
+        public String readLine() throws IOException {
+            return readReply().text();
+        }
+
+        private boolean ping() {
+            try {
+                send("PING");
+                return "PONG".equals(readLine());
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        public void abort() {
+            aborted = true;
+            close();
+        }
+
+        private void close() {
+            try { socket.close(); } catch (IOException ignored) {}
+        }
+    }
+}
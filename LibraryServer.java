@@ -1,162 +1,525 @@
 package com.sidp.distributed;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
-import java.net.ServerSocket;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class LibraryServer {
+    private static final int KEYWORD_CAPACITY = 4096;
+    private static final int FEED_CAPACITY = 65536;
+    private static final long FOLLOW_POLL_MS = 100;
+    private static final long FOLLOW_RETRY_MS = 1000;
+    private static final Set<String> COMMANDS = new HashSet<>(Arrays.asList("SEARCH", "LIST", "LEASE", "RETURN", "LEASE-BATCH",
+            "RETURN-BATCH", "STATS", "PING", "METRICS", "SNAPSHOT", "CHANGES", "SUMMARY", "QUIT"));
+
     private final String serverId;
     private final int port;
     private final File booksFile;
-    private final List<Book> books = new ArrayList<>();
-    private final Map<String, Integer> keywordCounts = new HashMap<>();
-    private final Map<String, Integer> bookSearchCounts = new HashMap<>();
+    private final int journalCompactThreshold;
+    private File storeFile;
+    private BookJournal journal;
+    private final ServerFrontEnd frontEnd;
+    private final AtomicBoolean compacting = new AtomicBoolean();
+    private final ExecutorService maintenance = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "journal-compactor");
+        t.setDaemon(true);
+        return t;
+    });
+    private final boolean compact;
+    private volatile List<Book> books = new ArrayList<>();
+    private final Map<String, Book> booksById = new ConcurrentHashMap<>();
+    private final KeywordIndex index = new KeywordIndex();
+    private volatile RankedIndex ranked = new RankedIndex(new ArrayList<>());
+    private final SearchStats stats = new SearchStats(KEYWORD_CAPACITY);
+    private final ChangeFeed feed = new ChangeFeed(FEED_CAPACITY);
+    private final ServerMetrics metrics;
+    private BookCatalog catalog;
+    private CompactCatalog compactCatalog;
+    private volatile GramFilter summary;
+    private volatile String summaryVersion;
+    private int summaryGeneration;
+    private HashRing partitions;
+    private String partition;
+    private InetSocketAddress primary;
+    private boolean reportHeap;
 
     public LibraryServer(String serverId, int port, File booksFile) {
+        this(serverId, port, booksFile, 0, false, new ServerFrontEnd(ServerFrontEnd.POOLED, 1024));
+    }
+
+    public LibraryServer(String serverId, int port, File booksFile, int journalCompactThreshold, boolean compact, ServerFrontEnd frontEnd) {
         this.serverId = serverId;
         this.port = port;
         this.booksFile = booksFile;
+        this.journalCompactThreshold = journalCompactThreshold;
+        this.storeFile = booksFile;
+        this.journal = journalCompactThreshold > 0 ? new BookJournal(booksFile, journalCompactThreshold) : null;
+        this.compact = compact;
+        this.frontEnd = frontEnd;
+        this.metrics = new ServerMetrics("library-" + serverId);
+        metrics.gauge("active_connections", frontEnd::activeConnections);
+        metrics.counter("rejected_connections", frontEnd::rejectedConnections);
+        metrics.gauge("books", () -> books.size());
+        metrics.gauge("feed_version", feed::version);
+    }
+
+    public ServerMetrics metrics() {
+        return metrics;
+    }
+
+    public void setPartition(int index, int count) {
+        if (index < 0 || index >= count) throw new IllegalArgumentException("Bad partition " + index + "/" + count);
+        this.partitions = HashRing.ofPartitions(count);
+        this.partition = String.valueOf(index);
+        this.storeFile = new File(booksFile.getPath() + ".part" + index + "of" + count);
+        if (journal != null) journal = new BookJournal(storeFile, journalCompactThreshold);
+    }
+
+    public void setFollow(String host, int port) {
+        this.primary = new InetSocketAddress(host, port);
+    }
+
+    public void setReportHeap(boolean reportHeap) {
+        this.reportHeap = reportHeap;
     }
 
     public void start() throws IOException {
-        loadBooks();
-        ServerSocket serverSocket = new ServerSocket(port);
-        ExecutorService pool = Executors.newCachedThreadPool();
-        while (true) {
-            Socket s = serverSocket.accept();
-            pool.submit(() -> handleClient(s));
+        if (reportHeap) {
+            Runtime rt = Runtime.getRuntime();
+            System.gc();
+            long before = rt.totalMemory() - rt.freeMemory();
+            loadBooks();
+            System.gc();
+            long used = rt.totalMemory() - rt.freeMemory() - before;
+            System.out.println(serverId + (partition != null ? "#" + partition : "") + " loaded " + books.size() + " books ("
+                    + (catalog != null ? "mapped" : compact ? "compact" : "objects") + "), ~" + used / Math.max(1, books.size())
+                    + " heap bytes/book including index");
+        } else {
+            loadBooks();
         }
+        if (primary != null) {
+            Thread t = new Thread(this::follow, "follow-" + serverId);
+            t.setDaemon(true);
+            t.start();
+        }
+        frontEnd.serve(port, "library-" + serverId, this::handleClient);
     }
 
     private void handleClient(Socket s) {
-        try (BufferedReader r = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
-             BufferedWriter w = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8))) {
-            String line = r.readLine();
-            if (line == null) return;
-            if (line.startsWith("SEARCH ")) {
-                String keyword = line.substring(7).trim();
-                keywordCounts.put(keyword.toLowerCase(), keywordCounts.getOrDefault(keyword.toLowerCase(), 0) + 1);
-                List<Book> matches = new ArrayList<>();
-                for (Book b : books) {
-                    if (b.matchesKeyword(keyword)) {
-                        bookSearchCounts.put(b.getId(), bookSearchCounts.getOrDefault(b.getId(), 0) + 1);
-                        matches.add(b);
-                    }
-                }
-                for (Book b : matches) {
-                    w.write(Book.toProtocolLine(b));
-                    w.write("\n");
-                }
-                w.write("END\n");
-                w.flush();
-            } else if (line.equals("LIST")) {
-                for (Book b : books) {
-                    if (b.isAvailable()) {
-                        w.write(Book.toProtocolLine(b));
-                        w.write("\n");
-                    }
+        try (InputStream in = new BufferedInputStream(s.getInputStream());
+             OutputStream os = new BufferedOutputStream(s.getOutputStream());
+             BufferedWriter w = new BufferedWriter(new OutputStreamWriter(os, StandardCharsets.UTF_8))) {
+            MeteredWriter out = new MeteredWriter(new WireFormat.TextResponseWriter(w));
+            while (true) {
+                String line = WireFormat.readLine(in);
+                if (line == null) break;
+                if (line.equals(WireFormat.HELLO)) {
+                    out.line(WireFormat.HELLO_OK);
+                    out.flush();
+                    serveBinary(in, os);
+                    break;
                 }
-                w.write("END\n");
-                w.flush();
-            } else if (line.startsWith("LEASE ")) {
-                String id = line.substring(6).trim();
-                Book b = findBook(id);
-                if (b == null) {
-                    w.write("ERROR NotFound\n");
-                    w.flush();
-                } else if (!b.isAvailable()) {
-                    w.write("ERROR NotAvailable\n");
-                    w.flush();
-                } else {
-                    b.setAvailable(false);
-                    saveBooks();
-                    w.write("OK\n");
-                    w.flush();
+                if (!timed(line, out)) break;
+            }
+        } catch (IOException e) {
+            metrics.increment("client_io_errors");
+        } finally {
+            try { s.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    private void serveBinary(InputStream in, OutputStream os) throws IOException {
+        MeteredWriter out = new MeteredWriter(new WireFormat.BinaryResponseWriter(os));
+        while (true) {
+            String cmd = WireFormat.readCommand(in);
+            if (cmd == null) break;
+            if (!timed(cmd, out)) break;
+        }
+    }
+
+    private boolean timed(String line, MeteredWriter out) throws IOException {
+        long start = System.nanoTime();
+        out.errored = false;
+        boolean failed = true;
+        try {
+            boolean more = handleCommand(line, out);
+            failed = out.errored;
+            return more;
+        } finally {
+            int sp = line.indexOf(' ');
+            String verb = sp < 0 ? line : line.substring(0, sp);
+            metrics.command(COMMANDS.contains(verb) ? verb : "OTHER").record(System.nanoTime() - start, failed);
+        }
+    }
+
+    private boolean handleCommand(String line, WireFormat.ResponseWriter out) throws IOException {
+        if (line.startsWith("SEARCH ")) {
+            PageRequest page = PageRequest.parse(line.substring(7), true);
+            if (page == null) {
+                out.line("ERROR BadRequest");
+                out.flush();
+                return true;
+            }
+            String keyword = page.rest;
+            if (page.ranked && RankedIndex.terms(keyword).isEmpty()) {
+                out.line("ERROR BadRequest");
+                out.flush();
+                return true;
+            }
+            stats.recordKeyword(keyword.toLowerCase(), 1);
+            if (page.ranked) {
+                for (RankedIndex.Hit h : ranked.search(keyword, page.window(), b -> stats.recordBook(b.getId()))) {
+                    out.line(Book.toProtocolLine(h.book, h.score));
                 }
-            } else if (line.startsWith("RETURN ")) {
-                String id = line.substring(7).trim();
-                Book b = findBook(id);
-                if (b == null) {
-                    w.write("ERROR NotFound\n");
-                    w.flush();
-                } else if (b.isAvailable()) {
-                    w.write("ERROR AlreadyAvailable\n");
-                    w.flush();
+                out.end();
+                return true;
+            }
+            List<Book> matches = index.search(keyword);
+            for (Book b : matches) {
+                stats.recordBook(b.getId());
+            }
+            if (page.paged()) matches = page.top(matches, page.window(), b -> true);
+            for (Book b : matches) {
+                out.book(b);
+            }
+            out.end();
+        } else if (line.equals("LIST") || line.startsWith("LIST ")) {
+            PageRequest page = PageRequest.parse(line.substring(4), false);
+            if (page == null) {
+                out.line("ERROR BadRequest");
+                out.flush();
+                return true;
+            }
+            Iterable<Book> listed = page.paged() ? page.top(books, page.window(), Book::isAvailable) : books;
+            for (Book b : listed) {
+                if (b.isAvailable()) out.book(b);
+            }
+            out.end();
+        } else if (primary != null && (line.startsWith("LEASE") || line.startsWith("RETURN"))) {
+            out.line("ERROR ReadOnlyReplica");
+            out.flush();
+        } else if (line.startsWith("LEASE-BATCH ") || line.startsWith("RETURN-BATCH ")) {
+            boolean lease = line.startsWith("LEASE-BATCH ");
+            String[] ids = line.substring(line.indexOf(' ') + 1).trim().split("\\s+");
+            Book[] resolved = new Book[ids.length];
+            List<Book> candidates = new ArrayList<>(ids.length);
+            for (int i = 0; i < ids.length; i++) {
+                if (ids[i].isEmpty()) continue;
+                resolved[i] = findBook(ids[i]);
+                if (resolved[i] != null) candidates.add(resolved[i]);
+            }
+            boolean[] applied = transition(candidates, !lease);
+            int next = 0;
+            for (int i = 0; i < ids.length; i++) {
+                if (ids[i].isEmpty()) continue;
+                if (resolved[i] == null) {
+                    out.line("ITEM " + ids[i] + " ERROR NotFound");
+                } else if (!applied[next++]) {
+                    out.line("ITEM " + ids[i] + (lease ? " ERROR NotAvailable" : " ERROR AlreadyAvailable"));
                 } else {
-                    b.setAvailable(true);
-                    saveBooks();
-                    w.write("OK\n");
-                    w.flush();
+                    out.line("ITEM " + ids[i] + " OK");
                 }
-            } else if (line.equals("STATS")) {
-                List<Map.Entry<String, Integer>> keys = new ArrayList<>(keywordCounts.entrySet());
-                List<Map.Entry<String, Integer>> booksC = new ArrayList<>(bookSearchCounts.entrySet());
-                for (Map.Entry<String, Integer> e : keys) {
-                    w.write("KEYWORD " + e.getKey() + "|" + e.getValue() + "\n");
-                }
-                for (Map.Entry<String, Integer> e : booksC) {
-                    w.write("BOOKSEARCH " + e.getKey() + "|" + e.getValue() + "\n");
+            }
+            out.end();
+        } else if (line.startsWith("LEASE ")) {
+            String id = line.substring(6).trim();
+            Book b = findBook(id);
+            if (b == null) {
+                out.line("ERROR NotFound");
+            } else if (!transition(Collections.singletonList(b), false)[0]) {
+                out.line("ERROR NotAvailable");
+            } else {
+                out.line("OK");
+            }
+            out.flush();
+        } else if (line.startsWith("RETURN ")) {
+            String id = line.substring(7).trim();
+            Book b = findBook(id);
+            if (b == null) {
+                out.line("ERROR NotFound");
+            } else if (!transition(Collections.singletonList(b), true)[0]) {
+                out.line("ERROR AlreadyAvailable");
+            } else {
+                out.line("OK");
+            }
+            out.flush();
+        } else if (line.equals("STATS")) {
+            for (Map.Entry<String, Long> e : stats.keywordSnapshot().entrySet()) {
+                out.line("KEYWORD " + e.getKey() + "|" + e.getValue());
+            }
+            for (Map.Entry<String, Long> e : stats.bookSnapshot().entrySet()) {
+                out.line("BOOKSEARCH " + e.getKey() + "|" + e.getValue());
+            }
+            out.end();
+        } else if (line.startsWith("STATS TOP=")) {
+            int k;
+            try {
+                k = Integer.parseInt(line.substring(10).trim());
+            } catch (NumberFormatException e) {
+                k = -1;
+            }
+            if (k < 0) {
+                out.line("ERROR BadRequest");
+                out.flush();
+                return true;
+            }
+            k = Math.min(k, StatsAggregator.MAX_TOP);
+            Map<String, Long> keywords = stats.keywordSnapshot();
+            Map<String, Long> bookCounts = stats.bookSnapshot();
+            for (Map.Entry<String, Long> e : StatsAggregator.top(keywords, k)) {
+                out.line("KEYWORD " + e.getKey() + "|" + e.getValue());
+            }
+            for (Map.Entry<String, Long> e : StatsAggregator.top(bookCounts, k)) {
+                out.line("BOOKSEARCH " + e.getKey() + "|" + e.getValue());
+            }
+            out.line("THRESHOLD KEYWORD " + StatsAggregator.threshold(keywords, k));
+            out.line("THRESHOLD BOOKSEARCH " + StatsAggregator.threshold(bookCounts, k));
+            out.end();
+        } else if (line.equals("METRICS") || line.equals("METRICS PROMETHEUS")) {
+            for (String l : line.equals("METRICS") ? metrics.lines() : metrics.prometheus()) out.line(l);
+            out.end();
+        } else if (line.equals("SNAPSHOT")) {
+            out.line("VERSION " + feed.epoch() + " " + feed.version());
+            for (Book b : books) out.line("ENTRY " + b.toStorageLine());
+            out.end();
+        } else if (line.startsWith("CHANGES ")) {
+            String[] p = line.substring(8).trim().split("\\s+");
+            ChangeFeed.Delta delta = null;
+            try {
+                if (p.length == 2) delta = feed.since(Long.parseLong(p[0]), Long.parseLong(p[1]));
+            } catch (NumberFormatException ignored) {
+            }
+            if (delta == null) {
+                out.line("ERROR Resync");
+                out.flush();
+            } else {
+                out.line("VERSION " + feed.epoch() + " " + delta.version);
+                for (String id : delta.ids) {
+                    Book b = findBook(id);
+                    if (b != null) out.line("ENTRY " + b.toStorageLine());
                 }
-                w.write("END\n");
-                w.flush();
+                out.end();
+            }
+        } else if (line.equals("SUMMARY") || line.startsWith("SUMMARY ")) {
+            String version = summaryVersion;
+            GramFilter filter = summary;
+            if (line.substring(7).trim().equals(version)) {
+                out.line("UNCHANGED " + version);
             } else {
-                w.write("ERROR UnknownCommand\n");
-                w.flush();
+                out.line("SUMMARY " + version + " " + filter.hashes() + " " + filter.wordCount());
+                for (String chunk : filter.encode()) out.line("BITS " + chunk);
             }
-        } catch (IOException ignored) {
-        } finally {
-            try { s.close(); } catch (IOException ignored) {}
+            out.end();
+        } else if (line.equals("PING")) {
+            out.line("PONG");
+            out.flush();
+        } else if (line.equals("QUIT")) {
+            return false;
+        } else {
+            out.line("ERROR UnknownCommand");
+            out.flush();
         }
+        return true;
     }
 
     private Book findBook(String id) {
-        for (Book b : books) {
-            if (b.getId().equals(id)) return b;
-        }
-        return null;
+        if (compactCatalog != null) return compactCatalog.find(id);
+        return booksById.get(id);
     }
 
     private void loadBooks() throws IOException {
-        if (!booksFile.exists()) {
-            booksFile.getParentFile().mkdirs();
-            List<Book> defaults = defaultBooks();
-            books.clear();
-            books.addAll(defaults);
+        File source = storeFile.exists() ? storeFile : booksFile;
+        if (!source.exists()) {
+            File parent = storeFile.getAbsoluteFile().getParentFile();
+            if (parent != null) parent.mkdirs();
+            List<Book> loaded = new ArrayList<>();
+            for (Book b : defaultBooks()) {
+                if (owns(b.getId())) loaded.add(b);
+            }
+            books = loaded;
+            indexBooks();
             saveBooks();
+        } else if (BookCatalog.isCatalog(source)) {
+            catalog = BookCatalog.open(source);
+            List<Book> loaded = new ArrayList<>();
+            for (Book b : catalog.books()) {
+                if (owns(b.getId())) loaded.add(b);
+            }
+            books = loaded;
+            indexBooks();
+            if (journal != null) System.err.println("Catalog files persist availability in place, ignoring --journal");
             return;
+        } else if (compact) {
+            CompactCatalog.Builder builder = new CompactCatalog.Builder();
+            try (BufferedReader r = new BufferedReader(new FileReader(source, StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = r.readLine()) != null) {
+                    if (line.isEmpty()) continue;
+                    Book b = Book.fromStorageLine(line);
+                    if (owns(b.getId())) builder.add(b);
+                }
+            }
+            compactCatalog = builder.build();
+            books = compactCatalog.rows();
+            indexBooks();
+        } else {
+            List<Book> loaded = new ArrayList<>();
+            try (BufferedReader r = new BufferedReader(new FileReader(source, StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = r.readLine()) != null) {
+                    if (line.isEmpty()) continue;
+                    Book b = Book.fromStorageLine(line);
+                    if (owns(b.getId())) loaded.add(b);
+                }
+            }
+            books = loaded;
+            indexBooks();
         }
-        books.clear();
-        try (BufferedReader r = new BufferedReader(new FileReader(booksFile, StandardCharsets.UTF_8))) {
-            String line;
-            while ((line = r.readLine()) != null) {
-                if (line.isEmpty()) continue;
-                books.add(Book.fromStorageLine(line));
+        if (source != storeFile && source.exists()) saveBooks();
+        if (journal != null) {
+            journal.open();
+            if (journal.replay(this::findBook) > 0) journal.compact(books);
+        }
+    }
+
+    private boolean owns(String id) {
+        return partitions == null || partitions.locate(id).equals(partition);
+    }
+
+    private void follow() {
+        while (true) {
+            try (Socket s = new Socket()) {
+                s.connect(primary, (int) FOLLOW_RETRY_MS);
+                s.setSoTimeout((int) (FOLLOW_RETRY_MS * 5));
+                BufferedReader r = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+                BufferedWriter w = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8));
+                String cmd = "SNAPSHOT";
+                while (true) {
+                    w.write(cmd);
+                    w.write("\n");
+                    w.flush();
+                    String ln = r.readLine();
+                    if (ln == null || ln.startsWith("ERROR ")) break;
+                    String[] v = ln.split(" ");
+                    if (v.length != 3 || !v[0].equals("VERSION")) throw new IOException("FeedUnsupported " + ln);
+                    List<Book> changed = new ArrayList<>();
+                    for (ln = r.readLine(); ln != null && !ln.equals("END"); ln = r.readLine()) {
+                        if (!ln.startsWith("ENTRY ")) continue;
+                        Book entry = Book.fromStorageLine(ln.substring(6));
+                        Book b = findBook(entry.getId());
+                        if (b != null && b.compareAndSetAvailable(!entry.isAvailable(), entry.isAvailable())) changed.add(b);
+                    }
+                    persist(changed);
+                    cmd = "CHANGES " + v[1] + " " + v[2];
+                    Thread.sleep(FOLLOW_POLL_MS);
+                }
+            } catch (IOException e) {
+                metrics.increment("follow_failures");
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                Thread.sleep(FOLLOW_RETRY_MS);
+            } catch (InterruptedException e) {
+                return;
             }
         }
     }
 
-    private void saveBooks() throws IOException {
-        try (BufferedWriter w = new BufferedWriter(new FileWriter(booksFile, StandardCharsets.UTF_8))) {
-            for (Book b : books) {
-                w.write(b.toStorageLine());
-                w.write("\n");
+    private void indexBooks() {
+        booksById.clear();
+        if (compactCatalog != null) {
+            index.rebuild(compactCatalog);
+            ranked = new RankedIndex(compactCatalog.rows());
+        } else {
+            for (Book b : books) booksById.put(b.getId(), b);
+            index.rebuild(books);
+            ranked = new RankedIndex(books);
+        }
+        refreshSummary();
+    }
+
+    private synchronized void refreshSummary() {
+        summary = index.summary();
+        summaryVersion = feed.epoch() + "." + ++summaryGeneration;
+    }
+
+    private boolean[] transition(List<Book> candidates, boolean available) throws IOException {
+        if (catalog == null && journal != null) {
+            boolean[] applied = journal.transition(candidates, available);
+            List<Book> changed = new ArrayList<>();
+            for (int i = 0; i < applied.length; i++) {
+                if (applied[i]) changed.add(candidates.get(i));
+            }
+            if (!changed.isEmpty()) {
+                feed.record(changed);
+                compactIfNeeded();
             }
+            return applied;
+        }
+        boolean[] applied = new boolean[candidates.size()];
+        List<Book> changed = new ArrayList<>();
+        for (int i = 0; i < applied.length; i++) {
+            applied[i] = candidates.get(i).compareAndSetAvailable(!available, available);
+            if (applied[i]) changed.add(candidates.get(i));
         }
+        persist(changed);
+        return applied;
+    }
+
+    private void persist(List<Book> changed) throws IOException {
+        if (changed.isEmpty()) return;
+        feed.record(changed);
+        if (catalog != null) {
+            catalog.store(changed);
+            return;
+        }
+        if (journal == null) {
+            saveBooks();
+            return;
+        }
+        journal.append(changed);
+        compactIfNeeded();
+    }
+
+    private void compactIfNeeded() {
+        if (journal.needsCompaction() && compacting.compareAndSet(false, true)) {
+            maintenance.execute(() -> {
+                try {
+                    journal.compact(books);
+                } catch (IOException e) {
+                    metrics.increment("compaction_failures");
+                } finally {
+                    compacting.set(false);
+                }
+            });
+        }
+    }
+
+    private synchronized void saveBooks() throws IOException {
+        BookJournal.writeSnapshot(storeFile, books);
     }
 
     private List<Book> defaultBooks() {
@@ -174,6 +537,32 @@ public class LibraryServer {
         return list;
     }
 
+    private static class MeteredWriter implements WireFormat.ResponseWriter {
+        private final WireFormat.ResponseWriter out;
+        private boolean errored;
+
+        private MeteredWriter(WireFormat.ResponseWriter out) {
+            this.out = out;
+        }
+
+        public void book(Book b) throws IOException {
+            out.book(b);
+        }
+
+        public void line(String s) throws IOException {
+            if (s.startsWith("ERROR ")) errored = true;
+            out.line(s);
+        }
+
+        public void end() throws IOException {
+            out.end();
+        }
+
+        public void flush() throws IOException {
+            out.flush();
+        }
+    }
+
     private List<String> asList(String... a) {
         List<String> l = new ArrayList<>();
         Collections.addAll(l, a);
@@ -182,13 +571,49 @@ public class LibraryServer {
 
     public static void main(String[] args) throws Exception {
         if (args.length < 3) {
-            System.out.println("Usage: LibraryServer <serverId> <port> <booksFile>");
+            System.out.println("Usage: LibraryServer <serverId> <port> <booksFile|catalogFile> [--journal[=compactEvery]] [--compact] [--metrics-port=n] [--partition=i/n] [--follow=host:port] [--report-heap] [--mode=pooled|virtual] [--max-connections=n]");
             return;
         }
         String serverId = args[0];
         int port = Integer.parseInt(args[1]);
         File booksFile = new File(args[2]);
-        new LibraryServer(serverId, port, booksFile).start();
+        int journalCompactThreshold = 0;
+        boolean compact = false;
+        int metricsPort = 0;
+        String partition = null;
+        String follow = null;
+        boolean reportHeap = false;
+        for (int i = 3; i < args.length; i++) {
+            String a = args[i];
+            if (a.equals("--journal")) {
+                journalCompactThreshold = 1000;
+            } else if (a.startsWith("--journal=")) {
+                journalCompactThreshold = Integer.parseInt(a.substring("--journal=".length()));
+            } else if (a.equals("--compact")) {
+                compact = true;
+            } else if (a.startsWith("--metrics-port=")) {
+                metricsPort = Integer.parseInt(a.substring("--metrics-port=".length()));
+            } else if (a.startsWith("--partition=")) {
+                partition = a.substring("--partition=".length());
+            } else if (a.startsWith("--follow=")) {
+                follow = a.substring("--follow=".length());
+            } else if (a.equals("--report-heap")) {
+                reportHeap = true;
+            }
+        }
+        ServerFrontEnd frontEnd = ServerFrontEnd.fromArgs(args, 1024);
+        LibraryServer server = new LibraryServer(serverId, port, booksFile, journalCompactThreshold, compact, frontEnd);
+        if (partition != null) {
+            int slash = partition.indexOf('/');
+            server.setPartition(Integer.parseInt(partition.substring(0, slash)), Integer.parseInt(partition.substring(slash + 1)));
+        }
+        if (follow != null) {
+            int col = follow.lastIndexOf(':');
+            server.setFollow(follow.substring(0, col), Integer.parseInt(follow.substring(col + 1)));
+        }
+        server.setReportHeap(reportHeap);
+        if (metricsPort > 0) server.metrics().serveHttp(metricsPort);
+        server.start();
     }
 }
 
@@ -0,0 +1,129 @@
+package com.sidp.distributed;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.Predicate;
+
+public class PageRequest {
+    public static final Comparator<Book> ORDER = Comparator.comparing(Book::getId);
+    public static final int MAX_WINDOW = 100000;
+
+    public final int limit;
+    public final int offset;
+    public final String after;
+    public final String rest;
+    public final boolean ranked;
+
+    public PageRequest(int limit, int offset, String after, String rest) {
+        this(limit, offset, after, rest, false);
+    }
+
+    public PageRequest(int limit, int offset, String after, String rest, boolean ranked) {
+        this.limit = limit;
+        this.offset = offset;
+        this.after = after;
+        this.rest = rest;
+        this.ranked = ranked;
+    }
+
+    public static PageRequest parse(String args, boolean keyword) {
+        int limit = 0;
+        int offset = 0;
+        String after = null;
+        boolean ranked = false;
+        String rest = args.trim();
+        while (true) {
+            int sp = rest.indexOf(' ');
+            if (keyword && sp < 0) break;
+            String token = sp < 0 ? rest : rest.substring(0, sp);
+            try {
+                if (token.startsWith("LIMIT=")) {
+                    limit = Integer.parseInt(token.substring(6));
+                } else if (token.startsWith("OFFSET=")) {
+                    offset = Integer.parseInt(token.substring(7));
+                } else if (token.startsWith("AFTER=") && token.length() > 6) {
+                    after = token.substring(6);
+                } else if (token.equals("RANKED")) {
+                    ranked = true;
+                } else {
+                    break;
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            rest = sp < 0 ? "" : rest.substring(sp + 1).trim();
+        }
+        if (limit < 0 || offset < 0 || (long) limit + offset > MAX_WINDOW) return null;
+        return new PageRequest(limit, offset, after, rest, ranked);
+    }
+
+    public boolean paged() {
+        return limit > 0;
+    }
+
+    public int window() {
+        return (int) Math.min(Integer.MAX_VALUE, (long) offset + limit);
+    }
+
+    public String libraryArgs() {
+        if (ranked) return paged() ? "RANKED LIMIT=" + window() : "RANKED";
+        StringBuilder sb = new StringBuilder();
+        sb.append("LIMIT=").append(window());
+        if (after != null) sb.append(" AFTER=").append(after);
+        return sb.toString();
+    }
+
+    public List<Book> top(Iterable<Book> candidates, int k, Predicate<Book> include) {
+        if (k <= 0) return new ArrayList<>();
+        PriorityQueue<Book> heap = new PriorityQueue<>(ORDER.reversed());
+        for (Book b : candidates) {
+            if (!include.test(b)) continue;
+            if (after != null && b.getId().compareTo(after) <= 0) continue;
+            if (heap.size() < k) {
+                heap.add(b);
+            } else if (ORDER.compare(b, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(b);
+            }
+        }
+        List<Book> result = new ArrayList<>(heap);
+        Collections.sort(result, ORDER);
+        return result;
+    }
+
+    public List<Book> merge(List<List<Book>> sortedRuns) {
+        PriorityQueue<Run> heap = new PriorityQueue<>((a, b) -> ORDER.compare(a.head(), b.head()));
+        for (List<Book> run : sortedRuns) {
+            if (run != null && !run.isEmpty()) heap.add(new Run(run));
+        }
+        List<Book> page = new ArrayList<>();
+        int skipped = 0;
+        while (!heap.isEmpty() && page.size() < limit) {
+            Run r = heap.poll();
+            Book b = r.head();
+            if (skipped < offset) {
+                skipped++;
+            } else {
+                page.add(b);
+            }
+            if (++r.pos < r.books.size()) heap.add(r);
+        }
+        return page;
+    }
+
+    private static class Run {
+        private final List<Book> books;
+        private int pos;
+
+        private Run(List<Book> books) {
+            this.books = books;
+        }
+
+        private Book head() {
+            return books.get(pos);
+        }
+    }
+}
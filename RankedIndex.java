@@ -0,0 +1,125 @@
+package com.sidp.distributed;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
+
+public class RankedIndex {
+    private static final double K1 = 1.2;
+    private static final double B = 0.75;
+    private static final int FIELDS = 3;
+    private static final double[] BOOSTS = {2.0, 1.0, 1.5};
+    private static final Comparator<Hit> ORDER = Comparator.comparingDouble((Hit h) -> -h.score)
+            .thenComparing(h -> h.book.getId());
+
+    private final List<Book> books;
+    private final Map<String, Postings> postings = new HashMap<>();
+    private final int[] lengths;
+    private final double[] averages = new double[FIELDS];
+
+    public RankedIndex(List<Book> books) {
+        this.books = books;
+        this.lengths = new int[books.size() * FIELDS];
+        long[] totals = new long[FIELDS];
+        Map<String, int[]> counts = new HashMap<>();
+        for (int doc = 0; doc < books.size(); doc++) {
+            Book b = books.get(doc);
+            counts.clear();
+            count(terms(b.getTitle()), doc, 0, counts);
+            count(terms(b.getAuthor()), doc, 1, counts);
+            for (String kw : b.getKeywords()) count(terms(kw), doc, 2, counts);
+            for (Map.Entry<String, int[]> e : counts.entrySet()) {
+                postings.computeIfAbsent(e.getKey(), k -> new Postings()).add(doc, e.getValue());
+            }
+            for (int f = 0; f < FIELDS; f++) totals[f] += lengths[doc * FIELDS + f];
+        }
+        for (int f = 0; f < FIELDS; f++) averages[f] = books.isEmpty() ? 1 : Math.max(1, (double) totals[f] / books.size());
+    }
+
+    public static class Hit {
+        public final Book book;
+        public final double score;
+
+        private Hit(Book book, double score) {
+            this.book = book;
+            this.score = score;
+        }
+    }
+
+    public static List<String> terms(String text) {
+        List<String> out = new ArrayList<>();
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean word = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (word && start < 0) {
+                start = i;
+            } else if (!word && start >= 0) {
+                out.add(text.substring(start, i).toLowerCase());
+                start = -1;
+            }
+        }
+        return out;
+    }
+
+    public List<Hit> search(String query, int k, Consumer<Book> matched) {
+        double n = books.size();
+        Map<Integer, Double> scores = new HashMap<>();
+        for (String term : new LinkedHashSet<>(terms(query))) {
+            Postings p = postings.get(term);
+            if (p == null) continue;
+            double idf = Math.log(1 + (n - p.size + 0.5) / (p.size + 0.5));
+            for (int i = 0; i < p.size; i++) {
+                int doc = p.docs[i];
+                double tf = 0;
+                for (int f = 0; f < FIELDS; f++) {
+                    int freq = p.freqs[i * FIELDS + f];
+                    if (freq == 0) continue;
+                    tf += BOOSTS[f] * freq / (1 - B + B * lengths[doc * FIELDS + f] / averages[f]);
+                }
+                scores.merge(doc, idf * tf * (K1 + 1) / (tf + K1), Double::sum);
+            }
+        }
+        PriorityQueue<Hit> heap = new PriorityQueue<>(ORDER.reversed());
+        for (Map.Entry<Integer, Double> e : scores.entrySet()) {
+            Hit h = new Hit(books.get(e.getKey()), e.getValue());
+            matched.accept(h.book);
+            if (k <= 0 || heap.size() < k) {
+                heap.add(h);
+            } else if (ORDER.compare(h, heap.peek()) < 0) {
+                heap.poll();
+                heap.add(h);
+            }
+        }
+        List<Hit> result = new ArrayList<>(heap);
+        Collections.sort(result, ORDER);
+        return result;
+    }
+
+    private void count(List<String> terms, int doc, int field, Map<String, int[]> counts) {
+        for (String t : terms) counts.computeIfAbsent(t, x -> new int[FIELDS])[field]++;
+        lengths[doc * FIELDS + field] += terms.size();
+    }
+
+    private static class Postings {
+        private int[] docs = new int[2];
+        private byte[] freqs = new byte[2 * FIELDS];
+        private int size;
+
+        private void add(int doc, int[] tf) {
+            if (size == docs.length) {
+                docs = Arrays.copyOf(docs, size * 2);
+                freqs = Arrays.copyOf(freqs, size * 2 * FIELDS);
+            }
+            docs[size] = doc;
+            for (int f = 0; f < FIELDS; f++) freqs[size * FIELDS + f] = (byte) Math.min(127, tf[f]);
+            size++;
+        }
+    }
+}
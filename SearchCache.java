@@ -0,0 +1,119 @@
+package com.sidp.distributed;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class SearchCache {
+    private final int maxEntries;
+    private final long ttlMillis;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Set<String>> keysByBook = new HashMap<>();
+    private long generation;
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long invalidations;
+
+    public SearchCache(int maxEntries, long ttlMillis) {
+        this.maxEntries = maxEntries;
+        this.ttlMillis = ttlMillis;
+    }
+
+    public static String normalize(String keyword) {
+        return keyword.trim().toLowerCase();
+    }
+
+    public boolean enabled() {
+        return maxEntries > 0 && ttlMillis > 0;
+    }
+
+    public synchronized Entry get(String key) {
+        Entry e = entries.get(key);
+        if (e != null && e.expiresAt < System.currentTimeMillis()) {
+            removeLocked(key);
+            e = null;
+        }
+        if (e == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return e;
+    }
+
+    public synchronized long generation() {
+        return generation;
+    }
+
+    public synchronized void put(String key, List<Book> books, int sources, long seenGeneration) {
+        if (!enabled() || seenGeneration != generation) return;
+        removeLocked(key);
+        entries.put(key, new Entry(Collections.unmodifiableList(books), sources, System.currentTimeMillis() + ttlMillis));
+        for (Book b : books) {
+            keysByBook.computeIfAbsent(b.getId(), k -> new HashSet<>()).add(key);
+        }
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (entries.size() > maxEntries && it.hasNext()) {
+            Map.Entry<String, Entry> eldest = it.next();
+            it.remove();
+            unlinkLocked(eldest.getKey(), eldest.getValue());
+            evictions++;
+        }
+    }
+
+    public synchronized void invalidateBook(String bookId) {
+        generation++;
+        Set<String> keys = keysByBook.remove(bookId);
+        if (keys == null) return;
+        for (String key : keys) {
+            Entry e = entries.remove(key);
+            if (e != null) {
+                unlinkLocked(key, e);
+                invalidations++;
+            }
+        }
+    }
+
+    public synchronized Map<String, Long> metrics() {
+        Map<String, Long> m = new LinkedHashMap<>();
+        m.put("hits", hits);
+        m.put("misses", misses);
+        m.put("evictions", evictions);
+        m.put("invalidations", invalidations);
+        m.put("size", (long) entries.size());
+        m.put("capacity", (long) maxEntries);
+        return m;
+    }
+
+    private void removeLocked(String key) {
+        Entry e = entries.remove(key);
+        if (e != null) unlinkLocked(key, e);
+    }
+
+    private void unlinkLocked(String key, Entry e) {
+        for (Book b : e.books) {
+            Set<String> keys = keysByBook.get(b.getId());
+            if (keys == null) continue;
+            keys.remove(key);
+            if (keys.isEmpty()) keysByBook.remove(b.getId());
+        }
+    }
+
+    public static class Entry {
+        public final List<Book> books;
+        public final int sources;
+        public final long expiresAt;
+
+        public Entry(List<Book> books, int sources, long expiresAt) {
+            this.books = books;
+            this.sources = sources;
+            this.expiresAt = expiresAt;
+        }
+    }
+}
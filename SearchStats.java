@@ -0,0 +1,123 @@
+package com.sidp.distributed;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+public class SearchStats {
+    private static final int SHARDS = 16;
+
+    private final KeywordShard[] keywordShards = new KeywordShard[SHARDS];
+    private final ConcurrentHashMap<String, LongAdder> bookCounts = new ConcurrentHashMap<>();
+
+    public SearchStats(int keywordCapacity) {
+        int perShard = Math.max(1, (keywordCapacity + SHARDS - 1) / SHARDS);
+        for (int i = 0; i < SHARDS; i++) keywordShards[i] = new KeywordShard(perShard);
+    }
+
+    public void recordKeyword(String keyword, long n) {
+        keywordShards[(keyword.hashCode() & 0x7fffffff) % SHARDS].add(keyword, n);
+    }
+
+    public void recordBook(String bookId) {
+        recordBook(bookId, 1);
+    }
+
+    public void recordBook(String bookId, long n) {
+        LongAdder adder = bookCounts.get(bookId);
+        if (adder == null) adder = bookCounts.computeIfAbsent(bookId, k -> new LongAdder());
+        adder.add(n);
+    }
+
+    public Map<String, Long> keywordSnapshot() {
+        Map<String, Long> out = new HashMap<>();
+        for (KeywordShard shard : keywordShards) shard.copyTo(out);
+        return out;
+    }
+
+    public Map<String, Long> bookSnapshot() {
+        Map<String, Long> out = new HashMap<>();
+        for (Map.Entry<String, LongAdder> e : bookCounts.entrySet()) {
+            out.put(e.getKey(), e.getValue().sum());
+        }
+        return out;
+    }
+
+    private static class KeywordShard {
+        private final Map<String, Entry> counts = new HashMap<>();
+        private final Entry[] heap;
+        private int size;
+
+        private KeywordShard(int capacity) {
+            this.heap = new Entry[capacity];
+        }
+
+        private synchronized void add(String keyword, long n) {
+            Entry e = counts.get(keyword);
+            if (e != null) {
+                e.count += n;
+                siftDown(e.pos);
+                return;
+            }
+            if (size < heap.length) {
+                e = new Entry(keyword, n, size);
+                heap[size++] = e;
+                counts.put(keyword, e);
+                siftUp(e.pos);
+                return;
+            }
+            e = heap[0];
+            counts.remove(e.keyword);
+            e.keyword = keyword;
+            e.count += n;
+            counts.put(keyword, e);
+            siftDown(0);
+        }
+
+        private void siftUp(int i) {
+            Entry e = heap[i];
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (heap[parent].count <= e.count) break;
+                place(heap[parent], i);
+                i = parent;
+            }
+            place(e, i);
+        }
+
+        private void siftDown(int i) {
+            Entry e = heap[i];
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= size) break;
+                if (child + 1 < size && heap[child + 1].count < heap[child].count) child++;
+                if (e.count <= heap[child].count) break;
+                place(heap[child], i);
+                i = child;
+            }
+            place(e, i);
+        }
+
+        private void place(Entry e, int i) {
+            heap[i] = e;
+            e.pos = i;
+        }
+
+        private synchronized void copyTo(Map<String, Long> out) {
+            for (int i = 0; i < size; i++) out.put(heap[i].keyword, heap[i].count);
+        }
+    }
+
+    private static class Entry {
+        private String keyword;
+        private long count;
+        private int pos;
+
+        private Entry(String keyword, long count, int pos) {
+            this.keyword = keyword;
+            this.count = count;
+            this.pos = pos;
+        }
+    }
+}
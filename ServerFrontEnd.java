@@ -0,0 +1,113 @@
+package com.sidp.distributed;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+public class ServerFrontEnd {
+    public static final String POOLED = "pooled";
+    public static final String VIRTUAL = "virtual";
+
+    private final String mode;
+    private final int maxConnections;
+    private final Semaphore slots;
+    private final LongAdder rejected = new LongAdder();
+
+    public ServerFrontEnd(String mode, int maxConnections) {
+        this.mode = mode;
+        this.maxConnections = Math.max(1, maxConnections);
+        this.slots = new Semaphore(this.maxConnections);
+    }
+
+    public int activeConnections() {
+        return maxConnections - slots.availablePermits();
+    }
+
+    public long rejectedConnections() {
+        return rejected.sum();
+    }
+
+    public interface Handler {
+        void handle(Socket s);
+    }
+
+    public void serve(int port, String name, Handler handler) throws IOException {
+        ServerSocket serverSocket = new ServerSocket(port, Math.min(maxConnections, 4096));
+        ExecutorService pool = createExecutor(name);
+        while (true) {
+            Socket s = serverSocket.accept();
+            try { s.setTcpNoDelay(true); } catch (IOException ignored) {}
+            if (!slots.tryAcquire()) {
+                reject(s);
+                continue;
+            }
+            try {
+                pool.execute(() -> {
+                    try {
+                        handler.handle(s);
+                    } finally {
+                        slots.release();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                slots.release();
+                reject(s);
+            }
+        }
+    }
+
+    ExecutorService createExecutor(String name) {
+        if (VIRTUAL.equals(mode)) {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.err.println("Virtual threads need JDK 21+, falling back to " + POOLED + " mode");
+            }
+        }
+        AtomicInteger counter = new AtomicInteger();
+        return new ThreadPoolExecutor(0, maxConnections, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), r -> {
+            Thread t = new Thread(r, name + "-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    private void reject(Socket s) {
+        rejected.increment();
+        try {
+            OutputStream out = s.getOutputStream();
+            out.write("ERROR Busy\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        } catch (IOException ignored) {
+        } finally {
+            try { s.close(); } catch (IOException ignored) {}
+        }
+    }
+
+    public static ServerFrontEnd fromArgs(String[] args, int defaultMaxConnections) {
+        String mode = POOLED;
+        int maxConnections = defaultMaxConnections;
+        for (String a : args) {
+            if (a.startsWith("--mode=")) {
+                mode = a.substring("--mode=".length());
+            } else if (a.startsWith("--max-connections=")) {
+                maxConnections = Integer.parseInt(a.substring("--max-connections=".length()));
+            }
+        }
+        if (!POOLED.equals(mode) && !VIRTUAL.equals(mode)) {
+            throw new IllegalArgumentException("Unknown mode " + mode);
+        }
+        return new ServerFrontEnd(mode, maxConnections);
+    }
+}
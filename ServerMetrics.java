@@ -0,0 +1,157 @@
+package com.sidp.distributed;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+public class ServerMetrics {
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final String server;
+    private final Map<String, Timer> commands = new ConcurrentSkipListMap<>();
+    private final Map<String, Timer> endpoints = new ConcurrentSkipListMap<>();
+    private final Map<String, LongAdder> events = new ConcurrentSkipListMap<>();
+    private final Map<String, LongSupplier> counters = new ConcurrentSkipListMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+
+    public ServerMetrics(String server) {
+        this.server = server;
+    }
+
+    public static class Timer {
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder timeouts = new LongAdder();
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        public void record(long nanos, boolean error) {
+            latency.record(nanos);
+            if (error) errors.increment();
+        }
+
+        public void timeout(long nanos) {
+            latency.record(nanos);
+            timeouts.increment();
+        }
+
+        public long count() {
+            return latency.count();
+        }
+    }
+
+    public Timer command(String name) {
+        Timer t = commands.get(name);
+        return t != null ? t : commands.computeIfAbsent(name, k -> new Timer());
+    }
+
+    public void endpoint(String name, Timer timer) {
+        endpoints.put(name, timer);
+    }
+
+    public void increment(String counter) {
+        LongAdder a = events.get(counter);
+        if (a == null) {
+            a = events.computeIfAbsent(counter, k -> new LongAdder());
+            counters.putIfAbsent(counter, a::sum);
+        }
+        a.increment();
+    }
+
+    public long count(String counter) {
+        LongAdder a = events.get(counter);
+        return a == null ? 0 : a.sum();
+    }
+
+    public void counter(String name, LongSupplier value) {
+        counters.put(name, value);
+    }
+
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    public List<String> lines() {
+        List<String> out = new ArrayList<>();
+        for (Map.Entry<String, Timer> e : commands.entrySet()) out.add(timerLine("COMMAND " + e.getKey(), e.getValue()));
+        for (Map.Entry<String, Timer> e : endpoints.entrySet()) out.add(timerLine("ENDPOINT " + e.getKey(), e.getValue()));
+        for (Map.Entry<String, LongSupplier> e : counters.entrySet()) out.add("COUNTER " + e.getKey() + " " + e.getValue().getAsLong());
+        for (Map.Entry<String, LongSupplier> e : gauges.entrySet()) out.add("GAUGE " + e.getKey() + " " + e.getValue().getAsLong());
+        return out;
+    }
+
+    public List<String> prometheus() {
+        List<String> out = new ArrayList<>();
+        String base = "server=\"" + server + "\"";
+        summary(out, "sidp_command", commands, base + ",command=\"");
+        summary(out, "sidp_endpoint", endpoints, base + ",endpoint=\"");
+        samples(out, counters, "counter", "_total", base);
+        samples(out, gauges, "gauge", "", base);
+        return out;
+    }
+
+    public void serveHttp(int port) throws IOException {
+        HttpServer http = HttpServer.create(new InetSocketAddress(port), 0);
+        http.createContext("/metrics", exchange -> {
+            byte[] body = (String.join("\n", prometheus()) + "\n").getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(body);
+            }
+        });
+        http.start();
+    }
+
+    private static void samples(List<String> out, Map<String, LongSupplier> values, String type, String suffix, String base) {
+        String declared = null;
+        for (Map.Entry<String, LongSupplier> e : values.entrySet()) {
+            String key = e.getKey();
+            int brace = key.indexOf('{');
+            String name = "sidp_" + (brace < 0 ? key : key.substring(0, brace)) + suffix;
+            String labels = brace < 0 ? base : base + "," + key.substring(brace + 1, key.length() - 1);
+            if (!name.equals(declared)) {
+                out.add("# TYPE " + name + " " + type);
+                declared = name;
+            }
+            out.add(name + "{" + labels + "} " + e.getValue().getAsLong());
+        }
+    }
+
+    private static String timerLine(String label, Timer t) {
+        LatencyHistogram h = t.latency;
+        return label + " count=" + h.count() + " errors=" + t.errors.sum() + " timeouts=" + t.timeouts.sum()
+                + String.format(Locale.ROOT, " p50_ms=%.3f p99_ms=%.3f p999_ms=%.3f max_ms=%.3f", h.percentile(0.5) / 1e6,
+                h.percentile(0.99) / 1e6, h.percentile(0.999) / 1e6, h.max() / 1e6);
+    }
+
+    private static void summary(List<String> out, String name, Map<String, Timer> timers, String labels) {
+        if (timers.isEmpty()) return;
+        out.add("# TYPE " + name + "_latency_seconds summary");
+        for (Map.Entry<String, Timer> e : timers.entrySet()) {
+            LatencyHistogram h = e.getValue().latency;
+            String l = labels + e.getKey() + "\"";
+            for (double q : QUANTILES) {
+                out.add(name + "_latency_seconds{" + l + ",quantile=\"" + q + "\"} " + h.percentile(q) / 1e9);
+            }
+            out.add(name + "_latency_seconds_sum{" + l + "} " + h.sum() / 1e9);
+            out.add(name + "_latency_seconds_count{" + l + "} " + h.count());
+        }
+        out.add("# TYPE " + name + "_errors_total counter");
+        for (Map.Entry<String, Timer> e : timers.entrySet()) {
+            out.add(name + "_errors_total{" + labels + e.getKey() + "\"} " + e.getValue().errors.sum());
+        }
+        out.add("# TYPE " + name + "_timeouts_total counter");
+        for (Map.Entry<String, Timer> e : timers.entrySet()) {
+            out.add(name + "_timeouts_total{" + labels + e.getKey() + "\"} " + e.getValue().timeouts.sum());
+        }
+    }
+}
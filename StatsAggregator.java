@@ -0,0 +1,95 @@
+package com.sidp.distributed;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class StatsAggregator {
+    public static final int MAX_TOP = 10000;
+
+    public static final Comparator<Map.Entry<String, Long>> BY_COUNT = (a, b) -> {
+        int c = Long.compare(b.getValue(), a.getValue());
+        return c != 0 ? c : a.getKey().compareTo(b.getKey());
+    };
+
+    public static class Partial {
+        public final Map<String, Long> keywords = new HashMap<>();
+        public final Map<String, Long> books = new HashMap<>();
+        public long keywordThreshold;
+        public long bookThreshold;
+    }
+
+    public static List<Map.Entry<String, Long>> top(Map<String, Long> counts, int k) {
+        List<Map.Entry<String, Long>> all = new ArrayList<>(counts.entrySet());
+        Collections.sort(all, BY_COUNT);
+        return all.size() <= k ? all : new ArrayList<>(all.subList(0, k));
+    }
+
+    public static long threshold(Map<String, Long> counts, int k) {
+        List<Map.Entry<String, Long>> all = new ArrayList<>(counts.entrySet());
+        if (all.size() <= k) return 0;
+        Collections.sort(all, BY_COUNT);
+        return all.get(k).getValue();
+    }
+
+    public static List<Map.Entry<String, Long>> mergeKeywords(List<Partial> partials, int k) {
+        List<Map<String, Long>> reported = new ArrayList<>();
+        long[] thresholds = new long[partials.size()];
+        for (int i = 0; i < partials.size(); i++) {
+            reported.add(partials.get(i).keywords);
+            thresholds[i] = partials.get(i).keywordThreshold;
+        }
+        return merge(reported, thresholds, k);
+    }
+
+    public static List<Map.Entry<String, Long>> mergeBooks(List<Partial> partials, int k) {
+        List<Map<String, Long>> reported = new ArrayList<>();
+        long[] thresholds = new long[partials.size()];
+        for (int i = 0; i < partials.size(); i++) {
+            reported.add(partials.get(i).books);
+            thresholds[i] = partials.get(i).bookThreshold;
+        }
+        return merge(reported, thresholds, k);
+    }
+
+    private static List<Map.Entry<String, Long>> merge(List<Map<String, Long>> reported, long[] thresholds, int k) {
+        Map<String, Long> lower = new HashMap<>();
+        Map<String, Long> upper = new HashMap<>();
+        long unseen = 0;
+        for (long t : thresholds) unseen += t;
+        for (Map<String, Long> m : reported) {
+            for (String key : m.keySet()) {
+                if (lower.containsKey(key)) continue;
+                long lo = 0;
+                long hi = 0;
+                for (int i = 0; i < reported.size(); i++) {
+                    Long c = reported.get(i).get(key);
+                    if (c != null) {
+                        lo += c;
+                        hi += c;
+                    } else {
+                        hi += thresholds[i];
+                    }
+                }
+                lower.put(key, lo);
+                upper.put(key, hi);
+            }
+        }
+        List<Map.Entry<String, Long>> ranked = top(lower, lower.size());
+        int n = Math.min(k, ranked.size());
+        long tau = n < k ? 0 : ranked.get(n - 1).getValue();
+        for (int i = 0; i < ranked.size(); i++) {
+            String key = ranked.get(i).getKey();
+            if (i < n) {
+                if (!upper.get(key).equals(lower.get(key))) return null;
+            } else if (upper.get(key) > tau) {
+                return null;
+            }
+        }
+        if (unseen > tau) return null;
+        return new ArrayList<>(ranked.subList(0, n));
+    }
+}
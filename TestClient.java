@@ -2,39 +2,373 @@ package com.sidp.distributed;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class TestClient {
+    private static final String LOAD_USAGE = "[--clients=n] [--duration-s=n] [--rate=ops_per_s] [--mix=search:80,list:5,lease:5,return:5,stats:5]"
+            + " [--zipf=s] [--keywords=a,b,...] [--replay=file]";
+    private static final Pattern COMMAND_FIELD = Pattern.compile("\"(?:command|cmd)\"\\s*:\\s*\"((?:\\\\.|[^\"\\\\])*)\"");
+
     public static void main(String[] args) throws Exception {
         if (args.length < 3) {
-            System.out.println("Usage: TestClient <host> <port> <command>");
+            System.out.println("Usage: TestClient <host> <port> <command> [; <command>]...");
+            System.out.println("       TestClient <host> <port> --load " + LOAD_USAGE);
             return;
         }
         String host = args[0];
         int port = Integer.parseInt(args[1]);
+        if (args[2].startsWith("--")) {
+            load(host, port, Arrays.copyOfRange(args, 2, args.length));
+            return;
+        }
         StringBuilder sb = new StringBuilder();
         for (int i = 2; i < args.length; i++) {
             if (i > 2) sb.append(' ');
             sb.append(args[i]);
         }
-        String cmd = sb.toString();
+        List<String> cmds = new ArrayList<>();
+        for (String c : sb.toString().split(";")) {
+            if (!c.trim().isEmpty()) cmds.add(c.trim());
+        }
         Socket s = new Socket();
         s.connect(new InetSocketAddress(host, port), 1000);
         s.setSoTimeout(3000);
         BufferedWriter w = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8));
         BufferedReader r = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
-        w.write(cmd + "\n");
+        if (cmds.size() == 1) {
+            w.write(cmds.get(0) + "\n");
+            w.flush();
+            String line;
+            while ((line = r.readLine()) != null) {
+                System.out.println(line);
+                if (line.equals("END")) break;
+                if (line.equals("OK") || line.startsWith("ERROR ")) break;
+            }
+            s.close();
+            return;
+        }
+        List<List<String>> replies = new ArrayList<>();
+        for (int i = 0; i < cmds.size(); i++) {
+            replies.add(new ArrayList<>());
+            w.write("#" + (i + 1) + " " + cmds.get(i) + "\n");
+        }
         w.flush();
+        int pending = cmds.size();
         String line;
-        while ((line = r.readLine()) != null) {
-            System.out.println(line);
-            if (line.equals("END")) break;
-            if (line.equals("OK") || line.startsWith("ERROR ")) break;
+        while (pending > 0 && (line = r.readLine()) != null) {
+            int sp = line.indexOf(' ');
+            if (!line.startsWith("#") || sp < 0) {
+                System.out.println(line);
+                continue;
+            }
+            int tag = Integer.parseInt(line.substring(1, sp));
+            String body = line.substring(sp + 1);
+            replies.get(tag - 1).add(body);
+            if (body.equals("END") || body.equals("OK") || body.startsWith("ERROR ")) pending--;
+        }
+        for (int i = 0; i < cmds.size(); i++) {
+            System.out.println("#" + (i + 1) + " " + cmds.get(i));
+            for (String l : replies.get(i)) System.out.println(l);
         }
         s.close();
     }
+
+    private static void load(String host, int port, String[] options) throws Exception {
+        int clients = 8;
+        long durationNanos = 10_000_000_000L;
+        double rate = 0;
+        double zipf = 1.0;
+        String mix = "search:80,list:5,lease:5,return:5,stats:5";
+        List<String> keywords = new ArrayList<>();
+        String replay = null;
+        for (String a : options) {
+            int eq = a.indexOf('=');
+            String key = eq < 0 ? a : a.substring(0, eq);
+            String value = eq < 0 ? "" : a.substring(eq + 1);
+            switch (key) {
+                case "--load":
+                    break;
+                case "--clients":
+                    clients = Integer.parseInt(value);
+                    break;
+                case "--duration-s":
+                    durationNanos = (long) (Double.parseDouble(value) * 1e9);
+                    break;
+                case "--rate":
+                    rate = Double.parseDouble(value);
+                    break;
+                case "--mix":
+                    mix = value;
+                    break;
+                case "--zipf":
+                    zipf = Double.parseDouble(value);
+                    break;
+                case "--keywords":
+                    keywords.addAll(Arrays.asList(value.split(",")));
+                    break;
+                case "--replay":
+                    replay = value;
+                    break;
+                default:
+                    System.out.println("Usage: TestClient <host> <port> --load " + LOAD_USAGE);
+                    return;
+            }
+        }
+        Workload workload;
+        if (replay != null) {
+            workload = new Replay(new File(replay));
+        } else {
+            List<String> ids = new ArrayList<>();
+            Map<String, Integer> words = new HashMap<>();
+            discover(host, port, ids, words);
+            if (keywords.isEmpty()) {
+                List<Map.Entry<String, Integer>> ranked = new ArrayList<>(words.entrySet());
+                ranked.sort((x, y) -> y.getValue().equals(x.getValue()) ? x.getKey().compareTo(y.getKey()) : y.getValue() - x.getValue());
+                for (Map.Entry<String, Integer> e : ranked) keywords.add(e.getKey());
+            }
+            if (keywords.isEmpty()) keywords.add("java");
+            workload = new Mix(mix, keywords, zipf, ids);
+        }
+        Map<String, Stat> stats = new ConcurrentHashMap<>();
+        LongAdder failed = new LongAdder();
+        CountDownLatch done = new CountDownLatch(clients);
+        long start = System.nanoTime();
+        long deadline = start + durationNanos;
+        long interval = rate > 0 ? (long) (1e9 * clients / rate) : 0;
+        for (int c = 0; c < clients; c++) {
+            long offset = interval * c / clients;
+            Thread t = new Thread(() -> {
+                try {
+                    runClient(host, port, workload, stats, failed, start + offset, interval, deadline);
+                } finally {
+                    done.countDown();
+                }
+            }, "load-" + c);
+            t.setDaemon(true);
+            t.start();
+        }
+        done.await();
+        report(stats, failed.sum(), (System.nanoTime() - start) / 1e9, rate, clients);
+    }
+
+    private static void runClient(String host, int port, Workload workload, Map<String, Stat> stats, LongAdder failed,
+                                  long firstSend, long interval, long deadline) {
+        Socket s = null;
+        BufferedWriter w = null;
+        BufferedReader r = null;
+        long intended = firstSend;
+        while (true) {
+            long now = System.nanoTime();
+            if (interval > 0) {
+                if (intended > now) LockSupport.parkNanos(intended - now);
+            } else {
+                intended = now;
+            }
+            if (System.nanoTime() >= deadline && !workload.ignoresDeadline()) break;
+            String cmd = workload.next();
+            if (cmd == null) break;
+            String type = cmd.split(" ", 2)[0].toUpperCase();
+            Stat stat = stats.computeIfAbsent(type, k -> new Stat());
+            try {
+                if (s == null) {
+                    s = new Socket();
+                    s.connect(new InetSocketAddress(host, port), 1000);
+                    s.setSoTimeout(10000);
+                    w = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8));
+                    r = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+                }
+                w.write(cmd);
+                w.write("\n");
+                w.flush();
+                String line;
+                while ((line = r.readLine()) != null) {
+                    if (line.startsWith("ERROR ")) stat.errors.increment();
+                    if (line.equals("END") || line.equals("OK") || line.equals("PONG") || line.startsWith("ERROR ")) break;
+                }
+                if (line == null) throw new IOException("ConnectionClosed");
+                stat.latency.record(System.nanoTime() - intended);
+            } catch (IOException e) {
+                failed.increment();
+                try { if (s != null) s.close(); } catch (IOException ignored) {}
+                s = null;
+            }
+            intended += interval;
+        }
+        try { if (s != null) s.close(); } catch (IOException ignored) {}
+    }
+
+    private static void discover(String host, int port, List<String> ids, Map<String, Integer> words) throws IOException {
+        try (Socket s = new Socket()) {
+            s.connect(new InetSocketAddress(host, port), 1000);
+            s.setSoTimeout(10000);
+            BufferedWriter w = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8));
+            BufferedReader r = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+            w.write("LIST\n");
+            w.flush();
+            String line;
+            while ((line = r.readLine()) != null && !line.equals("END") && !line.startsWith("ERROR ")) {
+                if (!line.startsWith("BOOK ")) continue;
+                Book b = Book.fromProtocolLine(line);
+                ids.add(b.getId());
+                for (String word : (b.getTitle() + " " + b.getAuthor()).toLowerCase().split("[^\\p{L}\\p{N}]+")) {
+                    if (word.length() >= 3) words.merge(word, 1, Integer::sum);
+                }
+            }
+        }
+    }
+
+    private static void report(Map<String, Stat> stats, long failed, double seconds, double rate, int clients) {
+        LatencyHistogram all = new LatencyHistogram();
+        long errors = 0;
+        System.out.printf("%s loop, %d clients%s, %.1fs, %d transport failures%n", rate > 0 ? "Open" : "Closed", clients,
+                rate > 0 ? String.format(", target %.0f req/s", rate) : "", seconds, failed);
+        System.out.printf("%-8s %9s %10s %8s %9s %9s %9s %9s %9s%n", "TYPE", "count", "req/s", "errors", "p50 ms", "p99 ms", "p999 ms", "max ms", "mean ms");
+        List<String> types = new ArrayList<>(stats.keySet());
+        Collections.sort(types);
+        for (String type : types) {
+            Stat st = stats.get(type);
+            all.add(st.latency);
+            errors += st.errors.sum();
+            row(type, st.latency, st.errors.sum(), seconds);
+        }
+        row("ALL", all, errors, seconds);
+    }
+
+    private static void row(String type, LatencyHistogram h, long errors, double seconds) {
+        System.out.printf("%-8s %9d %10.1f %8d %9.2f %9.2f %9.2f %9.2f %9.2f%n", type, h.count(), h.count() / seconds, errors,
+                h.percentile(0.50) / 1e6, h.percentile(0.99) / 1e6, h.percentile(0.999) / 1e6, h.max() / 1e6, h.mean() / 1e6);
+    }
+
+    private static class Stat {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LongAdder errors = new LongAdder();
+    }
+
+    private interface Workload {
+        String next();
+
+        boolean ignoresDeadline();
+    }
+
+    private static class Mix implements Workload {
+        private final String[] types;
+        private final double[] typeCdf;
+        private final List<String> keywords;
+        private final double[] keywordCdf;
+        private final List<String> ids;
+
+        private Mix(String spec, List<String> keywords, double zipf, List<String> ids) {
+            Map<String, Double> weights = new LinkedHashMap<>();
+            for (String part : spec.split(",")) {
+                String[] kv = part.split(":");
+                String type = kv[0].trim().toLowerCase();
+                if (!Arrays.asList("search", "list", "lease", "return", "stats").contains(type)) {
+                    throw new IllegalArgumentException("Unknown command type in --mix: " + type);
+                }
+                weights.put(type, kv.length > 1 ? Double.parseDouble(kv[1]) : 1);
+            }
+            if (ids.isEmpty()) {
+                weights.remove("lease");
+                weights.remove("return");
+            }
+            this.types = weights.keySet().toArray(new String[0]);
+            this.typeCdf = cdf(weights.values().stream().mapToDouble(Double::doubleValue).toArray());
+            this.keywords = keywords;
+            double[] z = new double[keywords.size()];
+            for (int i = 0; i < z.length; i++) z[i] = 1 / Math.pow(i + 1, zipf);
+            this.keywordCdf = cdf(z);
+            this.ids = ids;
+        }
+
+        public String next() {
+            ThreadLocalRandom rnd = ThreadLocalRandom.current();
+            switch (types[pick(typeCdf, rnd.nextDouble())]) {
+                case "search":
+                    return "SEARCH " + keywords.get(pick(keywordCdf, rnd.nextDouble()));
+                case "list":
+                    return "LIST";
+                case "lease":
+                    return "LEASE " + ids.get(rnd.nextInt(ids.size()));
+                case "return":
+                    return "RETURN " + ids.get(rnd.nextInt(ids.size()));
+                default:
+                    return "STATS";
+            }
+        }
+
+        public boolean ignoresDeadline() {
+            return false;
+        }
+
+        private static double[] cdf(double[] weights) {
+            double total = 0;
+            for (double w : weights) total += w;
+            double[] out = new double[weights.length];
+            double acc = 0;
+            for (int i = 0; i < weights.length; i++) {
+                acc += weights[i] / total;
+                out[i] = acc;
+            }
+            return out;
+        }
+
+        private static int pick(double[] cdf, double u) {
+            int i = Arrays.binarySearch(cdf, u);
+            if (i < 0) i = -i - 1;
+            return Math.min(i, cdf.length - 1);
+        }
+    }
+
+    private static class Replay implements Workload {
+        private final List<String> commands = new ArrayList<>();
+        private final AtomicInteger position = new AtomicInteger();
+
+        private Replay(File file) throws IOException {
+            try (BufferedReader r = new BufferedReader(new FileReader(file, StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = r.readLine()) != null) {
+                    line = line.trim();
+                    if (line.isEmpty() || line.startsWith("//")) continue;
+                    if (!line.startsWith("{")) {
+                        commands.add(line);
+                        continue;
+                    }
+                    Matcher m = COMMAND_FIELD.matcher(line);
+                    if (m.find()) commands.add(m.group(1).replace("\\\"", "\"").replace("\\\\", "\\"));
+                }
+            }
+            if (commands.isEmpty()) throw new IOException("No commands in " + file + " (expected one command per line or JSON lines with a \"command\" field)");
+        }
+
+        public String next() {
+            int i = position.getAndIncrement();
+            return i < commands.size() ? commands.get(i) : null;
+        }
+
+        public boolean ignoresDeadline() {
+            return true;
+        }
+    }
 }
@@ -0,0 +1,316 @@
+package com.sidp.distributed;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public final class WireFormat {
+    public static final String HELLO = "BINARY";
+    public static final String HELLO_OK = "OK BINARY";
+
+    private static final int FRAME_COMMAND = 1;
+    private static final int FRAME_BOOK = 2;
+    private static final int FRAME_LINE = 3;
+    private static final int FRAME_END = 4;
+    private static final int MAX_FRAME = 1 << 20;
+
+    private WireFormat() {
+    }
+
+    public interface ResponseWriter {
+        void book(Book b) throws IOException;
+
+        void line(String s) throws IOException;
+
+        void end() throws IOException;
+
+        void flush() throws IOException;
+    }
+
+    public static class TextResponseWriter implements ResponseWriter {
+        private final BufferedWriter w;
+
+        public TextResponseWriter(BufferedWriter w) {
+            this.w = w;
+        }
+
+        public void book(Book b) throws IOException {
+            w.write(Book.toProtocolLine(b));
+            w.write("\n");
+        }
+
+        public void line(String s) throws IOException {
+            w.write(s);
+            w.write("\n");
+        }
+
+        public void end() throws IOException {
+            w.write("END\n");
+            w.flush();
+        }
+
+        public void flush() throws IOException {
+            w.flush();
+        }
+    }
+
+    public static class BinaryResponseWriter implements ResponseWriter {
+        private final OutputStream out;
+        private final Frame frame = new Frame();
+        private final Map<String, Integer> serverIds = new HashMap<>();
+
+        public BinaryResponseWriter(OutputStream out) {
+            this.out = out;
+        }
+
+        public void book(Book b) throws IOException {
+            frame.reset(FRAME_BOOK);
+            String id = b.getId();
+            String sid = b.getServerId();
+            Integer ref = serverIds.get(sid);
+            if (ref == null) {
+                frame.varint(0);
+                frame.string(sid);
+                serverIds.put(sid, serverIds.size() + 1);
+            } else {
+                frame.varint(ref);
+            }
+            String suffix = sid.isEmpty() ? id : id.substring(sid.length() + 1);
+            if (isNumeric(suffix)) {
+                frame.varint(1);
+                frame.varint(suffix.length());
+                frame.varint(Long.parseLong(suffix));
+            } else {
+                frame.varint(0);
+                frame.string(suffix);
+            }
+            frame.string(b.getTitle());
+            frame.string(b.getAuthor());
+            frame.varint(b.isAvailable() ? 1 : 0);
+            frame.writeTo(out);
+        }
+
+        public void line(String s) throws IOException {
+            frame.reset(FRAME_LINE);
+            frame.string(s);
+            frame.writeTo(out);
+        }
+
+        public void end() throws IOException {
+            frame.reset(FRAME_END);
+            frame.writeTo(out);
+            out.flush();
+        }
+
+        public void flush() throws IOException {
+            out.flush();
+        }
+    }
+
+    public static void writeCommand(OutputStream out, String cmd) throws IOException {
+        Frame frame = new Frame();
+        frame.reset(FRAME_COMMAND);
+        frame.string(cmd);
+        frame.writeTo(out);
+        out.flush();
+    }
+
+    public static String readCommand(InputStream in) throws IOException {
+        byte[] payload = readFrame(in);
+        if (payload == null) return null;
+        Cursor c = new Cursor(payload);
+        if (c.varint() != FRAME_COMMAND) throw new IOException("UnexpectedFrame");
+        return c.string();
+    }
+
+    public static class ReplyReader {
+        private final InputStream in;
+        private final List<String> serverIds = new ArrayList<>();
+
+        public ReplyReader(InputStream in) {
+            this.in = in;
+        }
+
+        public Reply read() throws IOException {
+            byte[] payload = readFrame(in);
+            if (payload == null) throw new EOFException("ConnectionClosed");
+            Cursor c = new Cursor(payload);
+            int type = (int) c.varint();
+            if (type == FRAME_END) return Reply.END;
+            if (type == FRAME_LINE) return new Reply(c.string(), null);
+            if (type != FRAME_BOOK) throw new IOException("UnexpectedFrame");
+            int ref = (int) c.varint();
+            String sid;
+            if (ref == 0) {
+                sid = c.string();
+                serverIds.add(sid);
+            } else {
+                sid = serverIds.get(ref - 1);
+            }
+            String suffix;
+            if (c.varint() == 1) {
+                int width = (int) c.varint();
+                String digits = Long.toString(c.varint());
+                StringBuilder sb = new StringBuilder(width);
+                for (int i = digits.length(); i < width; i++) sb.append('0');
+                suffix = sb.append(digits).toString();
+            } else {
+                suffix = c.string();
+            }
+            String id = sid.isEmpty() ? suffix : sid + "-" + suffix;
+            String title = c.string();
+            String author = c.string();
+            boolean available = (c.varint() & 1) != 0;
+            return new Reply(null, new Book(id, title, author, new ArrayList<>(), available));
+        }
+    }
+
+    public static class Reply {
+        public static final Reply END = new Reply("END", null);
+
+        public final String line;
+        public final Book book;
+
+        public Reply(String line, Book book) {
+            this.line = line;
+            this.book = book;
+        }
+
+        public boolean isEnd() {
+            return this == END;
+        }
+
+        public String text() {
+            return line != null ? line : Book.toProtocolLine(book);
+        }
+    }
+
+    public static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(64);
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') break;
+            line.write(c);
+        }
+        if (c == -1 && line.size() == 0) return null;
+        byte[] bytes = line.toByteArray();
+        int len = bytes.length;
+        if (len > 0 && bytes[len - 1] == '\r') len--;
+        return new String(bytes, 0, len, StandardCharsets.UTF_8);
+    }
+
+    private static boolean isNumeric(String s) {
+        if (s.isEmpty() || s.length() > 18) return false;
+        for (int i = 0; i < s.length(); i++) {
+            char ch = s.charAt(i);
+            if (ch < '0' || ch > '9') return false;
+        }
+        return true;
+    }
+
+    private static byte[] readFrame(InputStream in) throws IOException {
+        int first = in.read();
+        if (first == -1) return null;
+        long len = first & 0x7f;
+        int shift = 7;
+        int b = first;
+        while ((b & 0x80) != 0) {
+            b = in.read();
+            if (b == -1) throw new EOFException("ConnectionClosed");
+            len |= (long) (b & 0x7f) << shift;
+            shift += 7;
+            if (shift > 35) throw new IOException("BadFrame");
+        }
+        if (len > MAX_FRAME) throw new IOException("FrameTooLarge");
+        byte[] payload = new byte[(int) len];
+        int off = 0;
+        while (off < payload.length) {
+            int n = in.read(payload, off, payload.length - off);
+            if (n == -1) throw new EOFException("ConnectionClosed");
+            off += n;
+        }
+        return payload;
+    }
+
+    private static class Frame {
+        private byte[] buf = new byte[256];
+        private int size;
+        private final byte[] header = new byte[5];
+
+        private void reset(int type) {
+            size = 0;
+            varint(type);
+        }
+
+        private void varint(long v) {
+            ensure(10);
+            while ((v & ~0x7fL) != 0) {
+                buf[size++] = (byte) ((v & 0x7f) | 0x80);
+                v >>>= 7;
+            }
+            buf[size++] = (byte) v;
+        }
+
+        private void string(String s) {
+            byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+            varint(bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, size, bytes.length);
+            size += bytes.length;
+        }
+
+        private void ensure(int extra) {
+            if (size + extra > buf.length) buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + extra));
+        }
+
+        private void writeTo(OutputStream out) throws IOException {
+            int n = 0;
+            int v = size;
+            while ((v & ~0x7f) != 0) {
+                header[n++] = (byte) ((v & 0x7f) | 0x80);
+                v >>>= 7;
+            }
+            header[n++] = (byte) v;
+            out.write(header, 0, n);
+            out.write(buf, 0, size);
+        }
+    }
+
+    private static class Cursor {
+        private final byte[] data;
+        private int pos;
+
+        private Cursor(byte[] data) {
+            this.data = data;
+        }
+
+        private long varint() throws IOException {
+            long v = 0;
+            int shift = 0;
+            while (true) {
+                if (pos >= data.length || shift > 63) throw new IOException("BadFrame");
+                int b = data[pos++];
+                v |= (long) (b & 0x7f) << shift;
+                if ((b & 0x80) == 0) return v;
+                shift += 7;
+            }
+        }
+
+        private String string() throws IOException {
+            int len = (int) varint();
+            if (len < 0 || pos + len > data.length) throw new IOException("BadFrame");
+            String s = new String(data, pos, len, StandardCharsets.UTF_8);
+            pos += len;
+            return s;
+        }
+    }
+}